@@ -9,6 +9,8 @@ package ir;
 
 import java.util.ArrayList;
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  *  This is the main class for the search engine.
@@ -16,9 +18,7 @@ import java.io.File;
 public class Engine {
 
     /** The inverted index. */
-    Index index = new HashedIndex();
-    
-    // Index index = new PersistentHashedIndex();
+    Index index;
 
     /** The indexer creating the search index. */
     Indexer indexer;
@@ -38,8 +38,11 @@ public class Engine {
     /** Directories that should be indexed. */
     ArrayList<String> dirNames = new ArrayList<String>();
 
-    /** Lock to prevent simultaneous access to the index. */
-    Object indexLock = new Object();
+    /**
+     *  Lock to prevent searching while the index is being changed.
+     *  Searches only take the read lock, so they can run in parallel.
+     */
+    final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
 
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file = null;
@@ -47,12 +50,49 @@ public class Engine {
     /** The file containing the logo. */
     String pic_file = "";
 
-    /** The file containing the pageranks. */
-    String rank_file = "";
+    /** The file containing the pageranks, as "title:score" lines. */
+    String rank_file = "pagerank/pageranksTitle.txt";
 
     /** For persistent indexes, we might not need to do any indexing. */
     boolean is_indexing = true;
 
+    /** Use a PersistentHashedIndex instead of a HashedIndex. */
+    boolean is_persistent = false;
+
+    /** Memory budget in megabytes for building a persistent index (0 = unbounded). */
+    long memory_budget = 0;
+
+    /** Number of threads used for indexing. */
+    int indexing_threads = 1;
+
+    /**
+     *  How the server evaluates ranked tf-idf queries, unless a request
+     *  says otherwise. The GUI always uses term-at-a-time evaluation,
+     *  which finds all matching documents and not only the top k.
+     */
+    EvaluationType evaluation = EvaluationType.TERM_AT_A_TIME;
+
+    /** Memory budget in megabytes for caching query results (0 = no cache). */
+    long query_cache_budget = 32;
+
+    /** Memory budget in megabytes for caching postings of a persistent index (0 = no cache). */
+    long postings_cache_budget = 64;
+
+    /** Number of terms, with the highest document frequencies, whose postings are cached at startup. */
+    int warm_up_terms = 0;
+
+    /** Answer queries over HTTP instead of showing the GUI. */
+    boolean is_server = false;
+
+    /** The port of the HTTP server. */
+    int port = 8080;
+
+    /** Number of threads answering HTTP requests. */
+    int server_threads = Runtime.getRuntime().availableProcessors();
+
+    /** The HTTP server, when running without the GUI. */
+    SearchServer server;
+
 
     /* ----------------------------------------------- */
 
@@ -63,30 +103,107 @@ public class Engine {
      */
     public Engine( String[] args ) {
         decodeArgs( args );
-        indexer = new Indexer( index, kgIndex, patterns_file );
+        if ( is_persistent ) {
+            PersistentHashedIndex persistent = new PersistentHashedIndex( PersistentHashedIndex.INDEXDIR, memory_budget * 1024 * 1024 );
+            if ( postings_cache_budget > 0 )
+                persistent.setCache( new PostingsCache( postings_cache_budget * 1024 * 1024 ));
+            index = persistent;
+        } else {
+            index = new HashedIndex();
+        }
+        indexer = new Indexer( index, kgIndex, patterns_file, indexing_threads );
         searcher = new Searcher( index, kgIndex );
-        gui = new SearchGUI( this );
-        gui.init();
+        if ( query_cache_budget > 0 )
+            searcher.setCache( new QueryCache( query_cache_budget * 1024 * 1024 ));
+        if ( !is_server ) {
+            gui = new SearchGUI( this );
+            gui.init();
+        } else {
+            // Nobody reads standard error for every request.
+            searcher.printKGramMatches = false;
+        }
         /* 
          *   Calls the indexer to index the chosen directory structure.
-         *   Access to the index is synchronized since we don't want to 
+         *   Indexing holds the write lock since we don't want to 
          *   search at the same time we're indexing new files (this might 
          *   corrupt the index).
          */
         if (is_indexing) {
-            synchronized ( indexLock ) {
-                gui.displayInfoText( "Indexing, please wait..." );
+            indexLock.writeLock().lock();
+            try {
+                displayInfoText( "Indexing, please wait..." );
                 long startTime = System.currentTimeMillis();
                 for ( int i=0; i<dirNames.size(); i++ ) {
                     File dokDir = new File( dirNames.get( i ));
                     indexer.processFiles( dokDir, is_indexing );
                 }
                 long elapsedTime = System.currentTimeMillis() - startTime;
-                gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
+                displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
                 index.cleanup();
+                loadPageRank( true );
+            } catch ( RuntimeException e ) {
+                // The index is incomplete, so it is not committed.
+                e.printStackTrace();
+                displayInfoText( "Indexing failed: " + e.getMessage() );
+            } finally {
+                indexLock.writeLock().unlock();
             }
         } else {
-            gui.displayInfoText( "Index is loaded from disk" );
+            displayInfoText( "Index is loaded from disk" );
+            loadPageRank( false );
+        }
+        if ( warm_up_terms > 0 && index instanceof PersistentHashedIndex ) {
+            long startTime = System.currentTimeMillis();
+            int loaded = ((PersistentHashedIndex)index).warmUp( warm_up_terms );
+            System.err.println( String.format( "Cached the postings of %d terms in %.1f seconds.",
+                                               loaded, ( System.currentTimeMillis() - startTime ) / 1000.0 ));
+        }
+        if ( is_server ) {
+            try {
+                server = new SearchServer( this, port, server_threads );
+                server.start();
+            } catch ( IOException e ) {
+                System.err.println( "Could not start the server: " + e.getMessage() );
+            }
+        }
+    }
+
+
+    /**
+     *   Shows a message in the GUI, or on standard error without it.
+     */
+    private void displayInfoText( String text ) {
+        if ( gui != null )
+            gui.displayInfoText( text );
+        else
+            System.err.println( text );
+    }
+
+
+    /**
+     *   Gives the searcher the PageRank of every document. After indexing,
+     *   the scores in the rank file are joined to the new docIDs, and for
+     *   a persistent index stored next to it. A persistent index loaded
+     *   from disk maps the stored scores instead.
+     */
+    private void loadPageRank( boolean indexed ) {
+        File stored = new File( PersistentHashedIndex.INDEXDIR, PageRankScores.FNAME );
+        try {
+            if ( !indexed && is_persistent && stored.exists() ) {
+                searcher.setPageRank( PageRankScores.map( stored ));
+            } else if ( new File( rank_file ).exists() ) {
+                double[] scores = PageRankScores.join( Index.docNames, rank_file );
+                if ( is_persistent ) {
+                    PageRankScores.write( scores, stored );
+                    searcher.setPageRank( PageRankScores.map( stored ));
+                } else {
+                    searcher.setPageRank( new PageRankScores( scores ));
+                }
+            } else {
+                System.err.println( "No pageranks found in " + rank_file );
+            }
+        } catch ( IOException e ) {
+            System.err.println( "Error reading pageranks: " + e.getMessage() );
         }
     }
 
@@ -122,6 +239,52 @@ public class Engine {
             } else if ( "-ni".equals( args[i] )) {
                 i++;
                 is_indexing = false;
+            } else if ( "-pi".equals( args[i] )) {
+                i++;
+                is_persistent = true;
+            } else if ( "-mb".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    memory_budget = Long.parseLong( args[i++] );
+                }
+            } else if ( "-t".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    indexing_threads = Integer.parseInt( args[i++] );
+                }
+            } else if ( "-eval".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    evaluation = EvaluationType.valueOf( args[i++].toUpperCase() );
+                }
+            } else if ( "-qc".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    query_cache_budget = Long.parseLong( args[i++] );
+                }
+            } else if ( "-pc".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    postings_cache_budget = Long.parseLong( args[i++] );
+                }
+            } else if ( "-pw".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    warm_up_terms = Integer.parseInt( args[i++] );
+                }
+            } else if ( "-server".equals( args[i] )) {
+                i++;
+                is_server = true;
+            } else if ( "-port".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    port = Integer.parseInt( args[i++] );
+                }
+            } else if ( "-st".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    server_threads = Integer.parseInt( args[i++] );
+                }
             } else {
                 System.err.println( "Unknown option: " + args[i] );
                 break;
@@ -0,0 +1,18 @@
+/*  
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ * 
+ *   Johan Boye, 2017
+ */  
+
+package ir;
+
+/**
+ *  The ways of evaluating ranked tf-idf queries: scoring every posting
+ *  of one term after the other, or one document at a time with WAND or
+ *  Block-Max WAND, which skip documents that cannot make the top k.
+ *  All of them give the same results.
+ */
+public enum EvaluationType {
+    TERM_AT_A_TIME, WAND, BLOCK_MAX_WAND
+}
@@ -10,6 +10,7 @@ package ir;
 
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Set;
 
 
 /**
@@ -20,6 +21,9 @@ public class HashedIndex implements Index {
 
     /** The index as a hashtable. */
     private HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
+
+    /** Incremented by every cleanup(). */
+    private volatile long version = 0;
     
 
     /**
@@ -67,8 +71,25 @@ public class HashedIndex implements Index {
 
 
     /**
-     *  No need for cleanup in a HashedIndex.
+     *  Returns the terms in the index.
+     */
+    Set<String> terms() {
+        return index.keySet();
+    }
+
+
+    /**
+     *  Computes the score upper bounds of all postings lists, now that
+     *  the lengths of all documents are known.
      */
     public void cleanup() {
+        for ( PostingsList list : index.values() )
+            list.blockMax( docLengths );
+        version++;
+    }
+
+
+    public long version() {
+        return version;
     }
 }
@@ -31,6 +31,12 @@ public interface Index {
     /** This method is called on exit. */
     public void cleanup();
 
+    /**
+     *  Returns a number that changes whenever the index has changed
+     *  and been committed with cleanup().
+     */
+    public long version();
+
     public HashMap<Integer, HashMap<String, Double>> tremFrequency = new HashMap<Integer, HashMap<String,Double>>();
     
 
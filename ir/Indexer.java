@@ -9,11 +9,22 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.nio.charset.*;
 
 
 /**
  *   Processes a directory structure and indexes all PDF and text files.
+ *
+ *   With more than one thread, the directory walker assigns the docIDs
+ *   and puts the files on a bounded queue. Every worker thread tokenizes
+ *   the files it takes from the queue into its own partial index, and the
+ *   partial indexes are merged into the index term by term at the end.
+ *   A persistent index with a memory budget instead gets every worker an
+ *   equal share of the budget: the worker writes its partial index to a
+ *   sorted run whenever the share is used up, and the runs are merged
+ *   when the index is committed. Either way, the resulting index is the
+ *   same as the one built by a single thread.
  */
 public class Indexer {
 
@@ -28,16 +39,37 @@ public class Indexer {
 
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file;
+
+    /** Set once the k-gram index has been loaded. */
     boolean con = false;
 
+    /** Number of threads tokenizing documents. */
+    int threads = 1;
+
+    /** The tokenizer used by processFiles, reset for every document. */
+    private Tokenizer tokenizer = null;
+
+    /** Inserts the tokens streamed by @code{tokenizer} into the index. */
+    private DocumentInserter inserter = new DocumentInserter();
+
+    /** Capacity of the queue between the directory walker and the workers. */
+    static final int QUEUE_SIZE = 1000;
+
     /* ----------------------------------------------- */
 
 
     /** Constructor */
     public Indexer( Index index, KGramIndex kgIndex, String patterns_file ) {
+        this( index, kgIndex, patterns_file, 1 );
+    }
+
+
+    /** Constructor for indexing with several threads. */
+    public Indexer( Index index, KGramIndex kgIndex, String patterns_file, int threads ) {
         this.index = index;
         this.kgIndex = kgIndex;
         this.patterns_file = patterns_file;
+        this.threads = threads;
     }
 
 
@@ -53,6 +85,12 @@ public class Indexer {
      *  all its files and subdirectories are recursively processed.
      */
     public void processFiles( File f, boolean is_indexing ) {
+        if ( is_indexing )
+            loadKGramIndex();
+        if ( is_indexing && threads > 1 ) {
+            processFilesParallel( f );
+            return;
+        }
         // do not try to index fs that cannot be read
         if (is_indexing) {
             if ( f.canRead() ) {
@@ -70,15 +108,13 @@ public class Indexer {
                     if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
                     try {
                         Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                        Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
-                        int offset = 0;
-                        while ( tok.hasMoreTokens() ) {
-                            String token = tok.nextToken();
-                            insertIntoIndex( docID, token, offset++ );
-                        }
+                        inserter.docID = docID;
+                        inserter.offset = 0;
+                        tokenizer( reader ).tokenize( inserter );
                         index.docNames.put( docID, f.getPath() );
-                        index.docLengths.put( docID, offset );
+                        index.docLengths.put( docID, inserter.offset );
                         reader.close();
+                        releaseTerms();
                     } catch ( IOException e ) {
                         System.err.println( "Warning: IOException during indexing." );
                     }
@@ -88,6 +124,276 @@ public class Indexer {
     }
 
 
+    /**
+     *  Returns the tokenizer of processFiles, reset to read from @code{reader}.
+     */
+    private Tokenizer tokenizer( Reader reader ) {
+        if ( tokenizer == null ) {
+            tokenizer = new Tokenizer( reader, true, false, true, patterns_file );
+        } else {
+            tokenizer.reset( reader );
+        }
+        return tokenizer;
+    }
+
+
+    /**
+     *  Empties the term table of @code{inserter} when a persistent index
+     *  has written its postings to a run since the last document, so that
+     *  the table does not keep the whole vocabulary on the heap.
+     */
+    private void releaseTerms() {
+        if ( index instanceof PersistentHashedIndex ) {
+            int runs = ((PersistentHashedIndex)index).runs.size();
+            if ( runs != inserter.runs ) {
+                inserter.terms.clear();
+                inserter.runs = runs;
+            }
+        }
+    }
+
+
+    /**
+     *  Inserts the tokens of one document into the index. Tokens are
+     *  interned, so only the first occurrence of a term creates a String.
+     */
+    private class DocumentInserter implements TokenHandler {
+        TermTable terms = new TermTable();
+        int docID;
+        int offset;
+        /** The number of runs written by the index when @code{terms} was last emptied. */
+        int runs = 0;
+
+        public void token( CharSequence token ) {
+            insertIntoIndex( docID, terms.intern( token ), offset++ );
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** A file to be indexed, with its docID. */
+    static class Document {
+        final int docID;
+        final File file;
+
+        Document( int docID, File file ) {
+            this.docID = docID;
+            this.file = file;
+        }
+    }
+
+
+    /** Marks the end of the queue for a worker. */
+    static final Document END = new Document( -1, null );
+
+
+    /**
+     *  The index built by one worker: postings lists for its documents,
+     *  plus their names and lengths. The tokens of the current document
+     *  are streamed into it. The heap bytes of the postings are estimated
+     *  like in PersistentHashedIndex.insert.
+     */
+    static class PartialIndex implements TokenHandler {
+        HashMap<String,PostingsList> postings = new HashMap<String,PostingsList>();
+        HashMap<Integer,String> docNames = new HashMap<Integer,String>();
+        HashMap<Integer,Integer> docLengths = new HashMap<Integer,Integer>();
+        TermTable terms = new TermTable();
+        long memoryUsed = 0;
+        int docID;
+        int offset;
+
+        public void token( CharSequence token ) {
+            String term = terms.intern( token );
+            PostingsList list = postings.get( term );
+            if ( list == null ) {
+                list = new PostingsList();
+                postings.put( term, list );
+                memoryUsed += PersistentHashedIndex.TERM_BYTES + 2 * term.length();
+            }
+            int entries = list.size();
+            list.add( docID, offset++ );
+            if ( list.size() != entries )
+                memoryUsed += PersistentHashedIndex.ENTRY_BYTES;
+            memoryUsed += PersistentHashedIndex.POSITION_BYTES;
+        }
+    }
+
+
+    /**
+     *  Tokenizes documents from the queue until the END marker is taken.
+     *  The worker takes docIDs in increasing order, so every postings
+     *  list of its partial index is sorted. If @code{budget} is positive,
+     *  the partial index is written to a run after any document that
+     *  takes it over the budget, so runs never split a document.
+     */
+    PartialIndex work( BlockingQueue<Document> queue, long budget ) throws InterruptedException, IOException {
+        PartialIndex partial = new PartialIndex();
+        Tokenizer tok = null;
+        Document doc;
+        while ( (doc = queue.take()) != END ) {
+            try ( Reader reader = new InputStreamReader( new FileInputStream( doc.file ), StandardCharsets.UTF_8 )) {
+                if ( tok == null ) {
+                    tok = new Tokenizer( reader, true, false, true, patterns_file );
+                } else {
+                    tok.reset( reader );
+                }
+                partial.docID = doc.docID;
+                partial.offset = 0;
+                tok.tokenize( partial );
+                partial.docNames.put( doc.docID, doc.file.getPath() );
+                partial.docLengths.put( doc.docID, partial.offset );
+            } catch ( IOException e ) {
+                System.err.println( "Warning: IOException during indexing." );
+            }
+            if ( budget > 0 && partial.memoryUsed > budget )
+                writeRun( partial );
+        }
+        return partial;
+    }
+
+
+    /**
+     *  Writes the postings of a partial index to a run of the persistent
+     *  index, and empties them. Document names and lengths are kept.
+     */
+    void writeRun( PartialIndex partial ) throws IOException {
+        ((PersistentHashedIndex)index).writeRun( partial.postings );
+        partial.postings.clear();
+        partial.terms.clear();
+        partial.memoryUsed = 0;
+    }
+
+
+    /**
+     *  Walks the directory structure in the same order as processFiles,
+     *  and puts every readable file on the queue.
+     */
+    private void walk( File f, BlockingQueue<Document> queue ) throws InterruptedException {
+        if ( f.canRead() ) {
+            if ( f.isDirectory() ) {
+                String[] fs = f.list();
+                // an IO error could occur
+                if ( fs != null ) {
+                    for ( int i=0; i<fs.length; i++ ) {
+                        walk( new File( f, fs[i] ), queue );
+                    }
+                }
+            } else {
+                int docID = generateDocID();
+                if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
+                queue.put( new Document( docID, f ));
+            }
+        }
+    }
+
+
+    /**
+     *  Indexes the file or directory @code{f} with @code{threads} workers.
+     *  The directory is walked by a thread of its own, so that a failed
+     *  worker is noticed at once. If the walker or any worker fails, the
+     *  others are stopped and a RuntimeException is thrown, so that an
+     *  index missing some documents is never committed.
+     */
+    public void processFilesParallel( File f ) {
+        // Every worker gets an equal share of the memory budget, if there is one.
+        long budget = index instanceof PersistentHashedIndex ? ((PersistentHashedIndex)index).memoryBudget : 0;
+        long share = budget > 0 ? Math.max( 1, budget / threads ) : 0;
+        BlockingQueue<Document> queue = new ArrayBlockingQueue<Document>( QUEUE_SIZE );
+        ExecutorService executor = Executors.newFixedThreadPool( threads + 1 );
+        // The workers return their partial indexes, the walker null.
+        CompletionService<PartialIndex> tasks = new ExecutorCompletionService<PartialIndex>( executor );
+        for ( int i=0; i<threads; i++ ) {
+            tasks.submit( () -> work( queue, share ));
+        }
+        tasks.submit( () -> {
+            walk( f, queue );
+            for ( int i=0; i<threads; i++ ) {
+                queue.put( END );
+            }
+            return null;
+        });
+        ArrayList<PartialIndex> partials = new ArrayList<PartialIndex>();
+        try {
+            for ( int i=0; i<=threads; i++ ) {
+                PartialIndex partial = tasks.take().get();
+                if ( partial != null )
+                    partials.add( partial );
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Indexing was interrupted" );
+        } catch ( ExecutionException e ) {
+            throw new RuntimeException( "Indexing failed", e.getCause() );
+        } finally {
+            // Stops the walker and the workers that are still running.
+            executor.shutdownNow();
+        }
+        if ( share > 0 )
+            writeRuns( partials );
+        else
+            mergePartials( partials );
+    }
+
+
+    /**
+     *  Writes what is left of the partial indexes to runs, which are
+     *  merged with the earlier runs when the index is committed.
+     */
+    void writeRuns( List<PartialIndex> partials ) {
+        for ( PartialIndex partial : partials ) {
+            Index.docNames.putAll( partial.docNames );
+            Index.docLengths.putAll( partial.docLengths );
+            try {
+                if ( !partial.postings.isEmpty() )
+                    writeRun( partial );
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    /**
+     *  Inserts the partial indexes into the index. Terms are inserted in
+     *  sorted order, and the postings of each term in docID order, so the
+     *  result does not depend on how documents were spread over workers.
+     */
+    void mergePartials( List<PartialIndex> partials ) {
+        TreeSet<String> terms = new TreeSet<String>();
+        for ( PartialIndex partial : partials ) {
+            terms.addAll( partial.postings.keySet() );
+            Index.docNames.putAll( partial.docNames );
+            Index.docLengths.putAll( partial.docLengths );
+        }
+        PostingsList[] lists = new PostingsList[partials.size()];
+        int[] next = new int[partials.size()];
+        for ( String term : terms ) {
+            for ( int i=0; i<lists.length; i++ ) {
+                lists[i] = partials.get( i ).postings.remove( term );
+                next[i] = 0;
+            }
+            // Every docID occurs in exactly one partial index.
+            while ( true ) {
+                int min = -1;
+                for ( int i=0; i<lists.length; i++ ) {
+                    if ( lists[i] != null && next[i] < lists[i].size() &&
+                         ( min < 0 || lists[i].get( next[i] ).docID < lists[min].get( next[min] ).docID )) {
+                        min = i;
+                    }
+                }
+                if ( min < 0 )
+                    break;
+                PostingsEntry entry = lists[min].get( next[min]++ );
+                for ( int j=0; j<entry.size(); j++ ) {
+                    insertIntoIndex( entry.docID, term, entry.position( j ));
+                }
+            }
+        }
+    }
+
+
     /* ----------------------------------------------- */
 
 
@@ -96,25 +402,28 @@ public class Indexer {
      */
     public void insertIntoIndex( int docID, String token, int offset ) {
         index.insert( token, docID, offset );
-        // if (kgIndex != null)
-        //     kgIndex.insert(token);
-        if (kgIndex != null && con == false){
-            // kgIndex = new KGramIndex(2);
-            try{    
-                con = true;
-                File f = new File("kgram_test.txt");
-                Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file);
-                while ( tok.hasMoreTokens() ) {
-                    String KGramtoken = tok.nextToken();
-                    kgIndex.insert(KGramtoken);
-                }
-             } catch (IOException e) {
+    }
+
+
+    /**
+     *  Fills the k-gram index with the words of kgram_test.txt, the first
+     *  time documents are indexed, whichever way they are indexed.
+     */
+    private void loadKGramIndex() {
+        if ( kgIndex == null || con )
+            return;
+        con = true;
+        try {
+            File f = new File("kgram_test.txt");
+            Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+            Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file);
+            while ( tok.hasMoreTokens() ) {
+                String KGramtoken = tok.nextToken();
+                kgIndex.insert(KGramtoken);
+            }
+            reader.close();
+        } catch (IOException e) {
             e.printStackTrace();
-            } 
         }
-        // System.out.println(kgIndex.getTermByID(0));
-            
     }
 }
-
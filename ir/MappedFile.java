@@ -0,0 +1,127 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ *   A read-only, memory-mapped view of a file.
+ *
+ *   A single MappedByteBuffer can address at most 2 GB, so the file is
+ *   mapped as a sequence of regions. Only absolute reads are used on the
+ *   shared buffers, so any number of threads can read concurrently
+ *   without locking.
+ */
+public class MappedFile {
+
+    /** Default size of one mapped region (1 GB). */
+    public static final int REGION_SIZE = 1 << 30;
+
+    /** The mapped regions, in file order. */
+    private final MappedByteBuffer[] regions;
+
+    /** Size of each region, except possibly the last one. */
+    private final int regionSize;
+
+    /** Number of mapped bytes. */
+    private final long length;
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *  Maps the first @code{length} bytes of the channel.
+     */
+    public MappedFile( FileChannel channel, long length ) throws IOException {
+        this( channel, length, REGION_SIZE );
+    }
+
+
+    public MappedFile( FileChannel channel, long length, int regionSize ) throws IOException {
+        this.length = length;
+        this.regionSize = regionSize;
+        int n = (int)(( length + regionSize - 1 ) / regionSize );
+        regions = new MappedByteBuffer[n];
+        for ( int i=0; i<n; i++ ) {
+            long start = (long)i * regionSize;
+            regions[i] = channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min( regionSize, length - start ));
+        }
+    }
+
+
+    /** Number of mapped bytes. */
+    public long length() {
+        return length;
+    }
+
+
+    public byte get( long pos ) {
+        return regions[(int)( pos / regionSize )].get( (int)( pos % regionSize ));
+    }
+
+
+    public int getInt( long pos ) {
+        int offset = (int)( pos % regionSize );
+        if ( offset + 4 <= regionSize )
+            return regions[(int)( pos / regionSize )].getInt( offset );
+        // The value is split between two regions.
+        int n = 0;
+        for ( int i=0; i<4; i++ )
+            n = ( n << 8 ) | ( get( pos + i ) & 0xff );
+        return n;
+    }
+
+
+    public long getLong( long pos ) {
+        int offset = (int)( pos % regionSize );
+        if ( offset + 8 <= regionSize )
+            return regions[(int)( pos / regionSize )].getLong( offset );
+        return ((long)getInt( pos ) << 32 ) | ( getInt( pos + 4 ) & 0xffffffffL );
+    }
+
+
+    /**
+     *  Copies @code{len} bytes starting at @code{pos} into @code{dst}.
+     */
+    public void get( long pos, byte[] dst, int off, int len ) {
+        while ( len > 0 ) {
+            int offset = (int)( pos % regionSize );
+            int n = Math.min( len, regionSize - offset );
+            ByteBuffer b = regions[(int)( pos / regionSize )].duplicate();
+            b.position( offset );
+            b.get( dst, off, n );
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+
+    /**
+     *  Returns a buffer holding the bytes [pos, pos+len). If the range
+     *  lies within one region this is a view of the mapping, otherwise
+     *  the bytes are copied.
+     */
+    public ByteBuffer slice( long pos, int len ) {
+        int offset = (int)( pos % regionSize );
+        if ( offset + len <= regionSize ) {
+            ByteBuffer b = regions[(int)( pos / regionSize )].duplicate();
+            b.position( offset );
+            b.limit( offset + len );
+            return b.slice();
+        }
+        byte[] data = new byte[len];
+        get( pos, data, 0, len );
+        return ByteBuffer.wrap( data );
+    }
+}
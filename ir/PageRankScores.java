@@ -0,0 +1,118 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ *   PageRank scores of the documents of an index, by docID.
+ *
+ *   The PageRank program writes one "title:score" line per document,
+ *   where the title is the file name of the document. The scores are
+ *   joined to the docIDs of the index once, after indexing, and can be
+ *   stored as a binary file of doubles, the score of docID d at byte
+ *   8*d. A stored file is memory-mapped, so that looking up a score at
+ *   query time is a single array read. Documents without a score, and
+ *   docIDs outside the file, have score 0.
+ */
+public class PageRankScores {
+
+    /** The name of the binary scores file in the index directory. */
+    public static final String FNAME = "pagerank";
+
+    /** The scores, indexed by docID. */
+    private final DoubleBuffer scores;
+
+
+    /* --------------------------------------------- */
+
+
+    public PageRankScores( double[] scores ) {
+        this.scores = DoubleBuffer.wrap( scores );
+    }
+
+
+    private PageRankScores( DoubleBuffer scores ) {
+        this.scores = scores;
+    }
+
+
+    /** Scores where every document has score 0. */
+    public static PageRankScores empty() {
+        return new PageRankScores( new double[0] );
+    }
+
+
+    /** Returns the PageRank of the document, or 0 if it has none. */
+    public double score( int docID ) {
+        return docID >= 0 && docID < scores.limit() ? scores.get( docID ) : 0;
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *  Reads the "title:score" lines of a PageRank output file, and
+     *  returns the score of every document in @code{docNames} whose file
+     *  name is a title in the file.
+     */
+    public static double[] join( Map<Integer,String> docNames, String ranksFile ) throws IOException {
+        HashMap<String,Double> byTitle = new HashMap<String,Double>();
+        try ( BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( ranksFile ), StandardCharsets.UTF_8 ))) {
+            String line;
+            while ( (line = in.readLine()) != null ) {
+                int colon = line.lastIndexOf( ':' );
+                if ( colon < 0 )
+                    continue;
+                byTitle.put( line.substring( 0, colon ), Double.parseDouble( line.substring( colon + 1 )));
+            }
+        }
+        int maxDocID = -1;
+        for ( int docID : docNames.keySet() )
+            maxDocID = Math.max( maxDocID, docID );
+        double[] scores = new double[maxDocID + 1];
+        for ( Map.Entry<Integer,String> e : docNames.entrySet() ) {
+            Double score = byTitle.get( fileName( e.getValue() ));
+            if ( score != null )
+                scores[e.getKey()] = score;
+        }
+        return scores;
+    }
+
+
+    /** The file name of a document path, on any platform. */
+    static String fileName( String path ) {
+        return path.substring( Math.max( path.lastIndexOf( '/' ), path.lastIndexOf( '\\' )) + 1 );
+    }
+
+
+    /** Writes the scores as a binary file of doubles. */
+    public static void write( double[] scores, File file ) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate( scores.length * 8 );
+        buf.asDoubleBuffer().put( scores );
+        try ( FileOutputStream out = new FileOutputStream( file )) {
+            out.write( buf.array() );
+        }
+    }
+
+
+    /** Memory-maps a binary scores file written by write(). */
+    public static PageRankScores map( File file ) throws IOException {
+        try ( FileChannel channel = FileChannel.open( file.toPath() )) {
+            return new PageRankScores( channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() ).asDoubleBuffer() );
+        }
+    }
+}
@@ -0,0 +1,581 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ *
+ *  Johan Boye, 2016
+ */
+
+package ir;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+
+/**
+ *  The compiled regular expressions matching non-standard words
+ *  (e-mail addresses, etc.). A PatternSet never changes after it has
+ *  been read, so one instance can be shared by all Tokenizers and
+ *  threads.
+ *
+ *  Besides the individual patterns, a PatternSet holds the patterns
+ *  combined into alternations, so that a token is scanned once instead
+ *  of once per pattern, and a prefilter: the set of characters
+ *  of which every match of every pattern must contain at least one.
+ *  Tokens without any of them (most ordinary words) are not matched
+ *  at all. Use a Finder to match tokens against the set.
+ */
+public class PatternSet {
+
+    /** Pattern sets that have been read, by file name. */
+    private static final ConcurrentHashMap<String,PatternSet> loaded = new ConcurrentHashMap<String,PatternSet>();
+
+    /** The patterns, in the order they are tried. */
+    final List<Pattern> patterns;
+
+    /**
+     *  The alternations of the first k+1 patterns, each pattern inside
+     *  a capturing group, or @code{null} if the patterns cannot safely
+     *  be combined.
+     */
+    final Pattern[] combined;
+
+    /** The number of the capturing group around each pattern in @code{combined}. */
+    final int[] groups;
+
+    /**
+     *  Characters that every match must contain one of, or @code{null}
+     *  if nothing is known and all tokens have to be matched.
+     */
+    final BitSet filter;
+
+
+    private PatternSet( List<Pattern> patterns ) {
+        this.patterns = Collections.unmodifiableList( patterns );
+        groups = new int[patterns.size()];
+        combined = combine( patterns, groups );
+        filter = prefilter( patterns );
+    }
+
+
+    /**
+     *  Returns the patterns in the given file. The file is read and
+     *  compiled only the first time it is asked for.
+     */
+    public static PatternSet load( String filename ) {
+        return loaded.computeIfAbsent( filename, PatternSet::read );
+    }
+
+
+    /**
+     *  Reads and compiles the patterns in the given file. Lines starting
+     *  with "//" are comments.
+     */
+    public static PatternSet read( String filename ) {
+        ArrayList<Pattern> patterns = new ArrayList<Pattern>();
+        String line = null;
+        try ( BufferedReader in = new BufferedReader( new FileReader( filename ))) {
+            while (( line = in.readLine()) != null ) {
+                line = line.trim();
+                if ( !line.startsWith( "//" ) && line.length() > 0 ) {
+                    patterns.add( Pattern.compile( line ));
+                }
+            }
+        }
+        catch ( IOException e ) {
+            System.err.println( "Warning: IOException reading the regular expressions from file" );
+        }
+        catch ( PatternSyntaxException e ) {
+            System.err.println( "ERROR: Malformed regular expression: " + line );
+        }
+        return new PatternSet( patterns );
+    }
+
+
+    /** Number of patterns. */
+    public int size() {
+        return patterns.size();
+    }
+
+
+    /** Returns a new Finder for this set. */
+    public Finder finder() {
+        return new Finder();
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *  Matches tokens against the pattern set. Like Matchers, Finders
+     *  are not thread-safe, so every Tokenizer has its own.
+     */
+    public class Finder {
+
+        /** Matchers for the combined patterns, or @code{null}. */
+        private final Matcher[] prefixes;
+
+        /** One matcher per pattern, used if the patterns are not combined. */
+        private final Matcher[] each;
+
+        /** The bounds of the last match. */
+        private int start, end;
+
+
+        private Finder() {
+            if ( combined != null ) {
+                prefixes = new Matcher[combined.length];
+                for ( int k=0; k<prefixes.length; k++ ) {
+                    prefixes[k] = combined[k].matcher( "" );
+                }
+                each = null;
+            } else {
+                prefixes = null;
+                each = new Matcher[patterns.size()];
+                for ( int i=0; i<each.length; i++ ) {
+                    each[i] = patterns.get( i ).matcher( "" );
+                }
+            }
+        }
+
+
+        /**
+         *  Looks for a non-standard word in @code{s}. As when the patterns
+         *  are tried one by one, the first pattern in the file that matches
+         *  somewhere in @code{s} wins, and its leftmost match is used.
+         *
+         *  @return @code{true} if some pattern matches.
+         */
+        public boolean find( CharSequence s ) {
+            if ( !mayMatch( s )) {
+                return false;
+            }
+            if ( prefixes == null ) {
+                for ( Matcher m : each ) {
+                    m.reset( s );
+                    if ( m.find() ) {
+                        start = m.start();
+                        end = m.end();
+                        return true;
+                    }
+                }
+                return false;
+            }
+            // At every position an alternation picks the first pattern
+            // that matches there, so its leftmost match is the leftmost
+            // match of the pattern picked. If an earlier pattern matches
+            // further to the right, it is found by looking for the
+            // alternation of only the patterns before the one picked.
+            int best = prefixes.length;
+            int from = 0;
+            while ( best > 0 && from <= s.length() ) {
+                Matcher m = prefixes[best-1];
+                m.reset( s );
+                if ( !m.find( from ))
+                    break;
+                best = alternative( m, best );
+                start = m.start();
+                end = m.end();
+                from = start + 1;
+            }
+            return best < prefixes.length;
+        }
+
+
+        /** Start of the last match. */
+        public int start() {
+            return start;
+        }
+
+
+        /** End of the last match. */
+        public int end() {
+            return end;
+        }
+
+
+        /**
+         *  Index of the pattern that made the last match of @code{m},
+         *  the alternation of the first @code{n} patterns.
+         */
+        private int alternative( Matcher m, int n ) {
+            for ( int k=0; k<n; k++ ) {
+                if ( m.start( groups[k] ) >= 0 )
+                    return k;
+            }
+            return -1;
+        }
+    }
+
+
+    /**
+     *  Returns @code{false} if no pattern can match @code{s}.
+     */
+    boolean mayMatch( CharSequence s ) {
+        if ( filter == null ) {
+            return true;
+        }
+        for ( int i=0; i<s.length(); i++ ) {
+            char c = s.charAt( i );
+            // Code points outside the BMP are not in the filter.
+            if ( filter.get( c ) || Character.isSurrogate( c ))
+                return true;
+        }
+        return false;
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *  Builds the alternations of the first k+1 patterns, and stores the
+     *  number of the group around each pattern in @code{groups}. Patterns
+     *  with backreferences, named groups or inline flags would change
+     *  meaning inside a larger pattern, so then @code{null} is returned.
+     */
+    private static Pattern[] combine( List<Pattern> patterns, int[] groups ) {
+        if ( patterns.isEmpty() ) {
+            return null;
+        }
+        Pattern[] combined = new Pattern[patterns.size()];
+        StringBuilder sb = new StringBuilder();
+        int group = 1;
+        for ( int k=0; k<patterns.size(); k++ ) {
+            Pattern p = patterns.get( k );
+            if ( p.flags() != 0 || !selfContained( p.pattern() )) {
+                return null;
+            }
+            if ( k > 0 )
+                sb.append( '|' );
+            sb.append( '(' ).append( p.pattern() ).append( ')' );
+            groups[k] = group;
+            group += p.matcher( "" ).groupCount() + 1;
+            try {
+                combined[k] = Pattern.compile( sb.toString() );
+            }
+            catch ( PatternSyntaxException e ) {
+                return null;
+            }
+        }
+        return combined;
+    }
+
+
+    /**
+     *  Returns @code{false} if the regular expression contains a
+     *  backreference, a named group, an inline flag or a quotation.
+     */
+    private static boolean selfContained( String regex ) {
+        for ( int i=0; i<regex.length(); i++ ) {
+            char c = regex.charAt( i );
+            if ( c == '\\' && i+1 < regex.length() ) {
+                char d = regex.charAt( ++i );
+                if ( Character.isDigit( d ) || d == 'k' || d == 'Q' )
+                    return false;
+            } else if ( c == '(' && i+2 < regex.length() && regex.charAt( i+1 ) == '?' ) {
+                char d = regex.charAt( i+2 );
+                boolean lookbehind = d == '<' && i+3 < regex.length() && ( regex.charAt( i+3 ) == '=' || regex.charAt( i+3 ) == '!' );
+                if ( d != ':' && d != '=' && d != '!' && d != '>' && !lookbehind )
+                    return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     *  Returns the union of the required characters of all patterns,
+     *  or @code{null} if some pattern has none.
+     */
+    private static BitSet prefilter( List<Pattern> patterns ) {
+        if ( patterns.isEmpty() ) {
+            return null;
+        }
+        BitSet filter = new BitSet( 65536 );
+        HashMap<String,BitSet> cache = new HashMap<String,BitSet>();
+        for ( Pattern p : patterns ) {
+            BitSet required = p.flags() == 0 ? required( p.pattern(), cache ) : null;
+            if ( required == null )
+                return null;
+            filter.or( required );
+        }
+        return filter;
+    }
+
+
+    /**
+     *  Looks at the top-level items of a regular expression, and returns
+     *  the set of characters that can match the most selective item that
+     *  every match must contain: a literal, an escape like \d or a
+     *  character class, not followed by ?, * or {0,..}. Sets with fewer
+     *  characters are preferred, and punctuation is preferred over
+     *  letters and digits, since most tokens consist of those. Groups
+     *  are skipped. Returns @code{null} if the expression cannot be
+     *  analyzed or has no such item.
+     */
+    private static BitSet required( String regex, HashMap<String,BitSet> cache ) {
+        if ( !selfContained( regex )) {
+            return null;
+        }
+        BitSet best = null;
+        int bestCost = Integer.MAX_VALUE;
+        int i = 0;
+        int n = regex.length();
+        while ( i < n ) {
+            char c = regex.charAt( i );
+            int itemStart = i;
+            boolean single = true;
+            if ( c == '|' ) {
+                return null;
+            } else if ( c == '(' ) {
+                i = skipGroup( regex, i );
+                single = false;
+            } else if ( c == '[' ) {
+                i = skipClass( regex, i );
+            } else if ( c == '\\' ) {
+                if ( i+1 >= n )
+                    return null;
+                char d = regex.charAt( i+1 );
+                if ( "bBAzZG".indexOf( d ) >= 0 ) {
+                    single = false;
+                } else if ( Character.isLetterOrDigit( d ) && "dDwWsShHvVtnrfae".indexOf( d ) < 0 ) {
+                    // Escapes with arguments, like \p{..} or \x..
+                    return null;
+                }
+                i += 2;
+            } else if ( c == '.' || c == '^' || c == '$' ) {
+                i++;
+                single = false;
+            } else if ( Character.isSurrogate( c ) || "*+?{})]".indexOf( c ) >= 0 ) {
+                return null;
+            } else {
+                i++;
+            }
+            if ( i < 0 )
+                return null;
+            String item = regex.substring( itemStart, i );
+
+            // The quantifier, if any
+            boolean mandatory = true;
+            if ( i < n ) {
+                char q = regex.charAt( i );
+                if ( q == '?' || q == '*' ) {
+                    mandatory = false;
+                    i++;
+                } else if ( q == '+' ) {
+                    i++;
+                } else if ( q == '{' ) {
+                    int close = regex.indexOf( '}', i );
+                    if ( close < 0 )
+                        return null;
+                    String min = regex.substring( i+1, close ).split( ",", -1 )[0].trim();
+                    mandatory = !min.isEmpty() && !min.matches( "0+" );
+                    i = close + 1;
+                }
+                // Lazy and possessive quantifiers
+                if ( i < n && i > itemStart + item.length() && ( regex.charAt( i ) == '?' || regex.charAt( i ) == '+' ))
+                    i++;
+            }
+            if ( !single || !mandatory )
+                continue;
+
+            BitSet chars = cache.get( item );
+            if ( chars == null ) {
+                chars = matchingChars( item );
+                if ( chars == null )
+                    return null;
+                cache.put( item, chars );
+            }
+            int cost = cost( chars );
+            if ( cost < bestCost ) {
+                best = chars;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+
+    /**
+     *  Cost of filtering on a set of characters: the number of characters,
+     *  where letters and digits count much more than the rest.
+     */
+    private static int cost( BitSet chars ) {
+        int cost = 0;
+        for ( int c = chars.nextSetBit( 0 ); c >= 0; c = chars.nextSetBit( c+1 )) {
+            cost += Character.isLetterOrDigit( c ) ? 1000 : 1;
+        }
+        return cost;
+    }
+
+
+    /**
+     *  Every character outside the surrogate range, in order. Surrogates
+     *  need not be tested, since mayMatch() lets them through anyway.
+     */
+    private static final String ALL_CHARS;
+    static {
+        StringBuilder sb = new StringBuilder( 65536 );
+        for ( int c=0; c<65536; c++ ) {
+            if ( !Character.isSurrogate( (char)c ))
+                sb.append( (char)c );
+        }
+        ALL_CHARS = sb.toString();
+    }
+
+
+    /**
+     *  Returns the characters matched by a regular expression matching
+     *  a single character, or @code{null} if it does not compile.
+     */
+    private static BitSet matchingChars( String item ) {
+        BitSet chars = simpleChars( item );
+        if ( chars != null ) {
+            return chars;
+        }
+        // Let the regex engine tell, which is slower.
+        Pattern p;
+        try {
+            p = Pattern.compile( item );
+        }
+        catch ( PatternSyntaxException e ) {
+            return null;
+        }
+        chars = new BitSet( 65536 );
+        Matcher m = p.matcher( ALL_CHARS );
+        while ( m.find() ) {
+            if ( m.end() != m.start() + 1 )
+                return null;
+            chars.set( ALL_CHARS.charAt( m.start() ));
+        }
+        return chars;
+    }
+
+
+    /**
+     *  Returns the characters matched by a literal, a simple escape or a
+     *  character class made of those and ranges, or @code{null} for
+     *  anything else.
+     */
+    private static BitSet simpleChars( String item ) {
+        BitSet chars = new BitSet( 65536 );
+        if ( !item.startsWith( "[" )) {
+            return addEscape( item, 0, chars ) == item.length() ? chars : null;
+        }
+        if ( item.startsWith( "[^" ) || item.indexOf( '[', 1 ) >= 0 || item.contains( "&&" )) {
+            return null;
+        }
+        int end = item.length() - 1;
+        int i = 1;
+        while ( i < end ) {
+            if ( i+2 < end && item.charAt( i+1 ) == '-' && item.charAt( i ) != '\\' && item.charAt( i+2 ) != '\\' ) {
+                if ( item.charAt( i ) > item.charAt( i+2 ))
+                    return null;
+                chars.set( item.charAt( i ), item.charAt( i+2 ) + 1 );
+                i += 3;
+            } else {
+                i = addEscape( item, i, chars );
+                if ( i < 0 )
+                    return null;
+            }
+        }
+        return chars;
+    }
+
+
+    /**
+     *  Adds the characters matched by the literal or escape at @code{i}.
+     *
+     *  @return The position after it, or -1 if it is not a simple one.
+     */
+    private static int addEscape( String item, int i, BitSet chars ) {
+        char c = item.charAt( i );
+        if ( c != '\\' ) {
+            chars.set( c );
+            return i + 1;
+        }
+        if ( i+1 >= item.length() ) {
+            return -1;
+        }
+        char d = item.charAt( i+1 );
+        switch ( d ) {
+        case 'd': chars.set( '0', '9'+1 ); break;
+        case 'w': chars.set( 'a', 'z'+1 ); chars.set( 'A', 'Z'+1 ); chars.set( '0', '9'+1 ); chars.set( '_' ); break;
+        case 's': chars.set( '\t', '\r'+1 ); chars.set( ' ' ); break;
+        case 't': chars.set( '\t' ); break;
+        case 'n': chars.set( '\n' ); break;
+        case 'r': chars.set( '\r' ); break;
+        case 'f': chars.set( '\f' ); break;
+        default:
+            if ( Character.isLetterOrDigit( d ))
+                return -1;
+            chars.set( d );
+        }
+        return i + 2;
+    }
+
+
+    /**
+     *  Returns the position after the group starting at @code{i},
+     *  or -1 if it is not closed.
+     */
+    private static int skipGroup( String regex, int i ) {
+        int depth = 0;
+        while ( i < regex.length() ) {
+            char c = regex.charAt( i );
+            if ( c == '\\' ) {
+                i += 2;
+                continue;
+            }
+            if ( c == '[' ) {
+                i = skipClass( regex, i );
+                if ( i < 0 )
+                    return -1;
+                continue;
+            }
+            if ( c == '(' ) {
+                depth++;
+            } else if ( c == ')' ) {
+                if ( --depth == 0 )
+                    return i + 1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+
+    /**
+     *  Returns the position after the character class starting at
+     *  @code{i}, or -1 if it is not closed.
+     */
+    private static int skipClass( String regex, int i ) {
+        int depth = 0;
+        while ( i < regex.length() ) {
+            char c = regex.charAt( i );
+            if ( c == '\\' ) {
+                i += 2;
+                continue;
+            }
+            if ( c == '[' ) {
+                depth++;
+            } else if ( c == ']' ) {
+                if ( --depth == 0 )
+                    return i + 1;
+            }
+            i++;
+        }
+        return -1;
+    }
+}
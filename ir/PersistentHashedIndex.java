@@ -9,6 +9,8 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.*;
 
 
@@ -17,11 +19,31 @@ import java.nio.charset.*;
  *   
  *   Both the words (the dictionary) and the data (the postings list) are
  *   stored in RandomAccessFiles that permit fast (almost constant-time)
- *   disk seeks. 
+ *   disk seeks. For searching, both files are memory-mapped, so that
+ *   lookups are plain buffer reads that can run in parallel.
  *
  *   When words are read and indexed, they are first put in an ordinary,
  *   main-memory HashMap. When all words are read, the index is committed
- *   to disk.
+ *   to disk. If a memory budget is given, the HashMap is instead written
+ *   to a sorted run file whenever its estimated size exceeds the budget,
+ *   and the runs are merged into the final index by a k-way merge.
+ *
+ *   The data file starts with a header (a magic number and the format
+ *   version). Data files without the header are in the old text format,
+ *   where every PostingsList is stored as its toString() representation.
+ *
+ *   The dictionary is an open-addressing hash table with linear probing.
+ *   Every slot holds the position and size of a record in the data file,
+ *   and a fingerprint of the term. A record starts with the term itself,
+ *   so a lookup is verified against the stored term before the postings
+ *   are returned. Dictionary files without header are from the old
+ *   layout, where records contain only the postings and terms are not
+ *   verified.
+ *
+ *   The size of the table is chosen from the vocabulary size when the
+ *   index is committed, and kept in the dictionary header. A dictionary
+ *   that is loaded more than MAX_LOAD_FACTOR is rehashed into a larger
+ *   table when it is opened.
  */
 public class PersistentHashedIndex implements Index {
 
@@ -40,30 +62,189 @@ public class PersistentHashedIndex implements Index {
     /** The doc info file name */
     public static final String DOCINFO_FNAME = "docInfo";
 
-    /** The dictionary hash table on disk can fit this many entries. */
+    /** Size of the dictionary hash table in the old layout, without header. */
     public static final long TABLESIZE = 611953L;
+
+    /** The smallest dictionary hash table that is created. */
+    public static final long MIN_TABLESIZE = 1009L;
+
+    /** Load factor of a newly built dictionary hash table. */
+    public static final double TARGET_LOAD_FACTOR = 0.5;
+
+    /** Dictionaries loaded more than this are rehashed into a larger table. */
+    public static final double MAX_LOAD_FACTOR = 0.75;
+
+    /** Prefix of the names of the sorted run files. */
+    public static final String RUN_FNAME = "run";
+
+    /** Estimated heap bytes of a new term in the HashMap, excluding its characters. */
+    static final int TERM_BYTES = 120;
+
+    /** Estimated heap bytes of a new PostingsEntry, with room for two positions. */
+    static final int ENTRY_BYTES = 64;
+
+    /** Estimated heap bytes of one position in a PostingsEntry (an int in an array that grows by doubling). */
+    static final int POSITION_BYTES = 6;
     // entry size long + int + int = 16
     public static final int ENTRYSIZE = 16;
 
+    /** Magic number at the start of a dictionary file ("PHDX"). */
+    public static final int DICTIONARY_MAGIC = 0x50484458;
+
+    /** Version of the dictionary layout. */
+    public static final int DICTIONARY_VERSION = 1;
+
+    /** Size of the dictionary header: magic, version, table size and number of terms. */
+    public static final int DICTIONARY_HEADER_SIZE = 24;
+
+    /** Magic number at the start of a binary data file ("PHIX"). */
+    public static final int DATA_MAGIC = 0x50484958;
+
+    /** Size of the data file header: magic number + format version. */
+    public static final int DATA_HEADER_SIZE = 8;
+
+    /** Format version of data files without header (text postings). */
+    public static final int FORMAT_TEXT = 0;
+
+    /** The directory where the index files of this index are stored. */
+    String indexDir;
+
+    /** The format of the postings in the data file. */
+    int dataFormat = PostingsCodec.VERSION;
+
+    /** @code{false} for dictionaries in the old layout, without stored terms. */
+    boolean keyedDictionary = true;
+
+    /** Number of slots in the dictionary hash table. */
+    long tableSize = TABLESIZE;
+
+    /** Number of terms in the dictionary. */
+    long numTerms = 0;
+
     /** The dictionary hash table is stored in this file. */
     RandomAccessFile dictionaryFile;
 
     /** The data (the PostingsLists) are stored in this file. */
     RandomAccessFile dataFile;
 
+    /** Read-only mapping of the dictionary file, or null if not mapped. */
+    volatile MappedFile dictionaryMap;
+
+    /** Read-only mapping of the data file, or null if not mapped. */
+    volatile MappedFile dataMap;
+
+    /** Set when the files could not be mapped, so that they are read instead. */
+    volatile boolean mappingFailed = false;
+
     /** Pointer to the first free memory cell in the data file. */
     long free = 0L;
 
-    /** The cache as a main-memory hash map. */
+    /**
+     *  The postings inserted since the last run was written, while indexing.
+     *  Searches read the postings from disk, through @code{cache}.
+     */
     HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
-    private List<Long> usedHashes = new ArrayList<>();
+
+    /** Decoded postings of popular terms, or @code{null} if none are kept. */
+    volatile PostingsCache cache = null;
+
+    /** Flush @code{index} to a run when it is estimated to use more bytes than this (0 = never). */
+    long memoryBudget = 0;
+
+    /** Estimated number of bytes used by @code{index}. */
+    long memoryUsed = 0;
+
+    /** The sorted run files written so far. */
+    ArrayList<File> runs = new ArrayList<File>();
+
+    /** Incremented every time the index is written to disk by cleanup(). */
+    private volatile long version = 0;
 
     // ===================================================================
 
+    /**
+     *   Probe-length statistics of a dictionary hash table. The histogram
+     *   counts terms found after 0, 1, 2-3, 4-7, ... extra probes.
+     */
+    public static class ProbeStatistics {
+        public long tableSize;
+        public long terms = 0;
+        public long totalProbes = 0;
+        public int maxProbes = 0;
+        public long[] histogram = new long[33];
+
+        public ProbeStatistics( long tableSize ) {
+            this.tableSize = tableSize;
+        }
+
+        public void add( int probes ) {
+            terms++;
+            totalProbes += probes;
+            maxProbes = Math.max( maxProbes, probes );
+            histogram[32 - Integer.numberOfLeadingZeros( probes )]++;
+        }
+
+        public double loadFactor() {
+            return (double)terms / tableSize;
+        }
+
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append( String.format( "%d terms in %d slots, load factor %.3f, mean probe length %.3f, max %d%n",
+                                     terms, tableSize, loadFactor(), terms == 0 ? 0.0 : (double)totalProbes / terms, maxProbes ));
+            for ( int i=0; i<histogram.length; i++ ) {
+                if ( histogram[i] == 0 )
+                    continue;
+                String range = i <= 1 ? "" + i : ( 1 << (i-1) ) + "-" + (( 1 << i ) - 1 );
+                s.append( String.format( "  %8s probes: %d%n", range, histogram[i] ));
+            }
+            return s.toString();
+        }
+    }
+
+
+    /**
+     *   Builds a dictionary hash table in memory, with a bitset marking
+     *   the occupied slots.
+     */
+    static class TableBuilder {
+        final long size;
+        final ByteBuffer table;
+        final BitSet occupied;
+        final ProbeStatistics stats;
+
+        TableBuilder( long size ) throws IOException {
+            if ( size * ENTRYSIZE > Integer.MAX_VALUE )
+                throw new IOException( "A dictionary with " + size + " slots is too large" );
+            this.size = size;
+            table = ByteBuffer.allocate( (int)( size * ENTRYSIZE ));
+            occupied = new BitSet( (int)size );
+            stats = new ProbeStatistics( size );
+        }
+
+        /**
+         *  Puts an entry in the first free slot from the home slot of the hash.
+         */
+        void add( long hash, long loc, int byteSize ) {
+            int slot = (int)Math.floorMod( hash, size );
+            int probes = 0;
+            while ( occupied.get( slot )) {
+                probes++;
+                slot = slot + 1 == size ? 0 : slot + 1;
+            }
+            occupied.set( slot );
+            table.putLong( slot * ENTRYSIZE, loc );
+            table.putInt( slot * ENTRYSIZE + 8, byteSize );
+            table.putInt( slot * ENTRYSIZE + 12, fingerprint( hash ));
+            stats.add( probes );
+        }
+    }
+
+
     /**
      *   A helper class representing one entry in the dictionary hashtable.
      */ 
-    public class Entry {
+    public static class Entry {
         public long loc;
         public int byteSize;
         public int checker;
@@ -84,9 +265,37 @@ public class PersistentHashedIndex implements Index {
      *  If these files don't exist, they will be created. 
      */
     public PersistentHashedIndex() {
+        this( INDEXDIR );
+    }
+
+
+    /**
+     *  Opens (or creates) the index stored in the given directory.
+     */
+    public PersistentHashedIndex( String indexDir ) {
+        this( indexDir, 0 );
+    }
+
+
+    /**
+     *  Opens (or creates) the index stored in the given directory.
+     *
+     *  @param memoryBudget When the in-memory index is estimated to be larger
+     *         than this many bytes, it is written to a sorted run. 0 means
+     *         that the whole index is kept in memory until cleanup().
+     */
+    public PersistentHashedIndex( String indexDir, long memoryBudget ) {
+        this.indexDir = indexDir;
+        this.memoryBudget = memoryBudget;
         try {
-            dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
-            dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
+            dictionaryFile = new RandomAccessFile( indexDir + "/" + DICTIONARY_FNAME, "rw" );
+            dataFile = new RandomAccessFile( indexDir + "/" + DATA_FNAME, "rw" );
+            dataFormat = readDataFormat();
+            readDictionaryHeader();
+            if ( keyedDictionary && numTerms > MAX_LOAD_FACTOR * tableSize ) {
+                System.err.println( "Dictionary load factor is " + (double)numTerms / tableSize + ", rehashing" );
+                rehash( chooseTableSize( numTerms ));
+            }
         } catch ( IOException e ) {
             e.printStackTrace();
         }
@@ -104,10 +313,9 @@ public class PersistentHashedIndex implements Index {
      *
      *  @return The number of bytes written.
      */ 
-    int writeData( String dataString, long ptr ) {
+    int writeData( byte[] data, long ptr ) {
         try {
             dataFile.seek( ptr ); 
-            byte[] data = dataString.getBytes();
             dataFile.write( data );
             return data.length;
         } catch ( IOException e ) {
@@ -120,60 +328,336 @@ public class PersistentHashedIndex implements Index {
     /**
      *  Reads data from the data file
      */ 
-    String readData( long ptr, int size ) {
-        try {
-            dataFile.seek( ptr );
-            byte[] data = new byte[size];
-            dataFile.readFully( data );
-            return new String(data);
-        } catch ( IOException e ) {
-            e.printStackTrace();
-            return null;
+    byte[] readData( long ptr, int size ) {
+        MappedFile data = dataMap;
+        if ( data != null ) {
+            byte[] bytes = new byte[size];
+            data.get( ptr, bytes, 0, size );
+            return bytes;
+        }
+        synchronized ( dataFile ) {
+            try {
+                dataFile.seek( ptr );
+                byte[] bytes = new byte[size];
+                dataFile.readFully( bytes );
+                return bytes;
+            } catch ( IOException e ) {
+                e.printStackTrace();
+                return null;
+            }
         }
     }
 
 
+    /**
+     *  Returns a buffer holding @code{size} bytes of the data file,
+     *  without copying if the data file is mapped.
+     */
+    ByteBuffer readBuffer( long ptr, int size ) {
+        MappedFile data = dataMap;
+        if ( data != null )
+            return data.slice( ptr, size );
+        byte[] bytes = readData( ptr, size );
+        return bytes == null ? null : ByteBuffer.wrap( bytes );
+    }
+
+
+    /**
+     *  Maps the dictionary and data files for reading, unless they
+     *  are mapped already. If mapping fails, this is reported once, and
+     *  the files are read through the RandomAccessFiles until they are
+     *  rewritten.
+     */
+    void mapFiles() {
+        if ( dataMap != null || mappingFailed )
+            return;
+        synchronized ( this ) {
+            if ( dataMap != null || mappingFailed )
+                return;
+            try {
+                dictionaryMap = new MappedFile( dictionaryFile.getChannel(), dictionaryFile.length() );
+                dataMap = new MappedFile( dataFile.getChannel(), dataFile.length() );
+            } catch ( IOException e ) {
+                System.err.println( "Could not map the index files, reading them instead: " + e.getMessage() );
+                mappingFailed = true;
+                dictionaryMap = null;
+            }
+        }
+    }
+
+
+    /**
+     *  Drops the mappings before the files are rewritten.
+     *
+     *  This only drops the references: Java has no way to unmap a file,
+     *  so the old mappings stay live until they are garbage collected.
+     *  On Linux and macOS the files can still be truncated and rewritten.
+     *  On Windows, a file cannot be truncated or resized while it is
+     *  mapped, so setLength() in writeDataHeader() and writeDictionary()
+     *  throws an IOException if this index has been searched before.
+     *  There, an index that has been searched must be rebuilt in a new
+     *  process (as Engine does), not in the one that searched it.
+     */
+    synchronized void unmapFiles() {
+        dataMap = null;
+        dictionaryMap = null;
+        mappingFailed = false;
+        PostingsCache c = cache;
+        if ( c != null )
+            c.clear();
+    }
+
+
+    /**
+     *  Returns the format version of the data file. An empty file gets
+     *  the current binary format, a file without header is text.
+     */
+    private int readDataFormat() throws IOException {
+        if ( dataFile.length() == 0 )
+            return PostingsCodec.VERSION;
+        if ( dataFile.length() >= DATA_HEADER_SIZE ) {
+            dataFile.seek( 0 );
+            if ( dataFile.readInt() == DATA_MAGIC ) {
+                int version = dataFile.readInt();
+                if ( version < PostingsCodec.MIN_VERSION || version > PostingsCodec.VERSION )
+                    throw new IOException( "Unsupported postings format version " + version );
+                return version;
+            }
+        }
+        return FORMAT_TEXT;
+    }
+
+
+    /**
+     *  Writes the data file header, and returns the first free position
+     *  after it. Text data files have no header.
+     */
+    private long writeDataHeader() throws IOException {
+        dataFile.setLength( 0 );
+        if ( dataFormat == FORMAT_TEXT )
+            return 0L;
+        // Binary data is always rewritten in the current format.
+        dataFormat = PostingsCodec.VERSION;
+        dataFile.seek( 0 );
+        dataFile.writeInt( DATA_MAGIC );
+        dataFile.writeInt( dataFormat );
+        return DATA_HEADER_SIZE;
+    }
+
+
+    /**
+     *  Serializes a postings list in the format of the data file.
+     */
+    byte[] encodePostings( PostingsList list ) {
+        if ( dataFormat == FORMAT_TEXT )
+            return list.toString().getBytes();
+        return PostingsCodec.encode( list, docLengths );
+    }
+
+
+    /**
+     *  Serializes a record of the data file: the term, followed by
+     *  its postings list.
+     */
+    byte[] encodeRecord( String token, PostingsList list ) {
+        byte[] term = token.getBytes( StandardCharsets.UTF_8 );
+        byte[] postings = encodePostings( list );
+        byte[] record = new byte[PostingsCodec.vbSize( term.length ) + term.length + postings.length];
+        int pos = PostingsCodec.putVB( record, 0, term.length );
+        System.arraycopy( term, 0, record, pos, term.length );
+        System.arraycopy( postings, 0, record, pos + term.length, postings.length );
+        return record;
+    }
+
+
+    /**
+     *  Checks whether the record in @code{buf} is stored under the given
+     *  term. If so, the position of @code{buf} is left at the postings.
+     */
+    static boolean matchTerm( ByteBuffer buf, byte[] term ) {
+        int length = PostingsCodec.readVB( buf );
+        if ( length != term.length )
+            return false;
+        int start = buf.position();
+        for ( int i=0; i<length; i++ ) {
+            if ( buf.get( start + i ) != term[i] )
+                return false;
+        }
+        buf.position( start + length );
+        return true;
+    }
+
+
+    /**
+     *  Deserializes a postings list read from the data file.
+     */
+    PostingsList decodePostings( ByteBuffer data ) {
+        if ( dataFormat == FORMAT_TEXT ) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get( bytes );
+            return toPosting( new String( bytes ));
+        }
+        return PostingsCodec.decode( data, dataFormat );
+    }
+
+
     // ==================================================================
     //
     //  Reading and writing to the dictionary file.
 
-    /*
-     *  Writes an entry to the dictionary hash table file. 
-     *
-     *  @param entry The key of this entry is assumed to have a fixed length
-     *  @param ptr   The place in the dictionary file to store the entry
+    /**
+     *  Reads the dictionary header. Files without header are in the
+     *  old layout, with a fixed table size.
      */
-    void writeEntry( Entry entry, long ptr ) {
-        try {
-            dictionaryFile.seek(ptr); 
-            dictionaryFile.writeLong(entry.loc);
-            dictionaryFile.writeInt(entry.byteSize);
-            dictionaryFile.writeInt(entry.checker);
+    private void readDictionaryHeader() throws IOException {
+        if ( dictionaryFile.length() >= DICTIONARY_HEADER_SIZE ) {
+            dictionaryFile.seek( 0 );
+            if ( dictionaryFile.readInt() == DICTIONARY_MAGIC ) {
+                int version = dictionaryFile.readInt();
+                if ( version != DICTIONARY_VERSION )
+                    throw new IOException( "Unsupported dictionary version " + version );
+                tableSize = dictionaryFile.readLong();
+                numTerms = dictionaryFile.readLong();
+                keyedDictionary = true;
+                return;
+            }
+        }
+        keyedDictionary = dictionaryFile.length() == 0;
+        tableSize = TABLESIZE;
+    }
 
-        } catch ( IOException e ) {
-            e.printStackTrace();
+
+    /**
+     *  Writes the dictionary file: the header followed by the table.
+     */
+    private void writeDictionary( TableBuilder builder ) throws IOException {
+        tableSize = builder.size;
+        numTerms = builder.stats.terms;
+        dictionaryFile.setLength( 0 );
+        dictionaryFile.seek( 0 );
+        dictionaryFile.writeInt( DICTIONARY_MAGIC );
+        dictionaryFile.writeInt( DICTIONARY_VERSION );
+        dictionaryFile.writeLong( tableSize );
+        dictionaryFile.writeLong( numTerms );
+        ByteBuffer table = builder.table;
+        table.rewind();
+        while ( table.hasRemaining() ) 
+            dictionaryFile.getChannel().write( table, DICTIONARY_HEADER_SIZE + table.position() );
+        keyedDictionary = true;
+    }
+
+
+    /**
+     *  Returns the table size for a vocabulary of @code{terms} terms:
+     *  the first prime giving at most TARGET_LOAD_FACTOR.
+     */
+    static long chooseTableSize( long terms ) {
+        long size = Math.max( MIN_TABLESIZE, (long)Math.ceil( terms / TARGET_LOAD_FACTOR ));
+        while ( !isPrime( size ))
+            size++;
+        return size;
+    }
+
+
+    static boolean isPrime( long n ) {
+        if ( n < 2 )
+            return false;
+        if ( n % 2 == 0 )
+            return n == 2;
+        for ( long d=3; d*d<=n; d+=2 ) {
+            if ( n % d == 0 )
+                return false;
+        }
+        return true;
+    }
+
+
+    /**
+     *  Moves all entries of the dictionary into a new table with
+     *  @code{newTableSize} slots. The data file is not changed.
+     */
+    public void rehash( long newTableSize ) throws IOException {
+        if ( !keyedDictionary )
+            throw new IOException( "Dictionaries in the old layout have no terms and cannot be rehashed" );
+        unmapFiles();
+        TableBuilder builder = new TableBuilder( newTableSize );
+        for ( long slot=0; slot<tableSize; slot++ ) {
+            Entry ent = readEntry( slotPtr( slot ));
+            if ( ent == null )
+                break;
+            if ( ent.byteSize > 0 )
+                builder.add( hash( readTerm( ent )), ent.loc, ent.byteSize );
+        }
+        writeDictionary( builder );
+        System.err.print( builder.stats );
+    }
+
+
+    /**
+     *  Returns the term stored at the start of the record of an entry.
+     */
+    String readTerm( Entry ent ) {
+        ByteBuffer record = readBuffer( ent.loc, ent.byteSize );
+        byte[] term = new byte[PostingsCodec.readVB( record )];
+        record.get( term );
+        return new String( term, StandardCharsets.UTF_8 );
+    }
+
+
+    /**
+     *  Computes the load factor and the probe-length histogram of the
+     *  dictionary, by finding the home slot of every stored term.
+     */
+    public ProbeStatistics probeStatistics() {
+        ProbeStatistics stats = new ProbeStatistics( tableSize );
+        if ( !keyedDictionary )
+            return stats;
+        mapFiles();
+        for ( long slot=0; slot<tableSize; slot++ ) {
+            Entry ent = readEntry( slotPtr( slot ));
+            if ( ent == null )
+                break;
+            if ( ent.byteSize > 0 ) {
+                long home = Math.floorMod( hash( readTerm( ent )), tableSize );
+                stats.add( (int)Math.floorMod( slot - home, tableSize ));
+            }
         }
+        return stats;
+    }
+
 
+    /**
+     *  Returns the position of the given slot in the dictionary file.
+     */
+    long slotPtr( long slot ) {
+        return keyedDictionary ? DICTIONARY_HEADER_SIZE + slot * ENTRYSIZE : slot * ENTRYSIZE;
     }
 
+
     /**
      *  Reads an entry from the dictionary file.
      *
      *  @param ptr The place in the dictionary file where to start reading.
      */
     Entry readEntry(long ptr) {   
-         try {
-            dictionaryFile.seek(ptr);
-            long loc = dictionaryFile.readLong();
-            dictionaryFile.seek(ptr + 8);
-            int byteSize = dictionaryFile.readInt();
-            dictionaryFile.seek(ptr + 4);
-            int checker = dictionaryFile.readInt();
-
-            return new Entry(loc, byteSize, checker);
-        } catch ( IOException e ) {
-            // e.printStackTrace();
-            return null;
+        MappedFile dict = dictionaryMap;
+        if ( dict != null ) {
+            if ( ptr + ENTRYSIZE > dict.length() )
+                return null;
+            return new Entry(dict.getLong(ptr), dict.getInt(ptr + 8), dict.getInt(ptr + 12));
+        }
+        synchronized ( dictionaryFile ) {
+            try {
+                dictionaryFile.seek(ptr);
+                long loc = dictionaryFile.readLong();
+                int byteSize = dictionaryFile.readInt();
+                int checker = dictionaryFile.readInt();
+
+                return new Entry(loc, byteSize, checker);
+            } catch ( IOException e ) {
+                // e.printStackTrace();
+                return null;
+            }
         }
     }
 
@@ -186,7 +670,7 @@ public class PersistentHashedIndex implements Index {
      * @throws IOException  { exception_description }
      */
     private void writeDocInfo() throws IOException {
-        FileOutputStream fout = new FileOutputStream( INDEXDIR + "/docInfo" );
+        FileOutputStream fout = new FileOutputStream( indexDir + "/" + DOCINFO_FNAME );
         for ( Map.Entry<Integer,String> entry : docNames.entrySet() ) {
             Integer key = entry.getKey();
             String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + "\n";
@@ -203,7 +687,7 @@ public class PersistentHashedIndex implements Index {
      * @throws     IOException  { exception_description }
      */
     private void readDocInfo() throws IOException {
-        File file = new File( INDEXDIR + "/docInfo" );
+        File file = new File( indexDir + "/" + DOCINFO_FNAME );
         FileReader freader = new FileReader(file);
         try ( BufferedReader br = new BufferedReader(freader) ) {
             String line;
@@ -219,91 +703,152 @@ public class PersistentHashedIndex implements Index {
 
     /**
      *  Write the index to files.
+     *
+     *  The postings are written sequentially to the data file, while the
+     *  dictionary table is built in memory, with a bitset marking the
+     *  occupied slots, and written in one go at the end. The table size
+     *  is chosen from the size of the vocabulary.
      */
     public void writeIndex() {
-        int collisions = 0;
         try {
             // Write the 'docNames' and 'docLengths' hash maps to a file
             writeDocInfo();
+            unmapFiles();
 
             // Write the dictionary and the postings list
-                
-                
+            free = writeDataHeader();
+            TableBuilder builder = new TableBuilder( chooseTableSize( index.size() ));
+            OutputStream out = new BufferedOutputStream( Channels.newOutputStream( dataFile.getChannel() ), 1 << 16 );
             for(Map.Entry<String, PostingsList> ent : index.entrySet()){
-                long location = free;
                 String token = ent.getKey();
-                PostingsList posting = ent.getValue();
-                long hashedToken = hashFunction(token);
-                int counter = 0;
-                while(usedHashes.contains(hashedToken)){
-
-                    collisions++;
-                    counter++;
-                    hashedToken =  hashedToken + counter;
-                    if(hashedToken < 0||hashedToken >= TABLESIZE )
-                        hashedToken = free;
-                }
-
-                
-                usedHashes.add(hashedToken);
-                int byteWritten = writeData(posting.toString(), location);
-                Entry temp = new Entry(location, byteWritten, token.hashCode());
-                writeEntry(temp, hashedToken * ENTRYSIZE);
-                location = location + byteWritten;
-
+                byte[] record = encodeRecord(token, ent.getValue());
+                out.write(record);
+                builder.add(hash(token), free, record.length);
+                free += record.length;
             }
+            out.flush();
+            writeDictionary( builder );
+            System.err.print( builder.stats );
         } catch ( IOException e ) {
             e.printStackTrace();
         }
-        System.err.println( collisions + " collisions." );
     }
 
+    // ==================================================================
 
 
-    public boolean checkCollision(long hash, int checker){
-       try {
-            dictionaryFile.seek((hash * ENTRYSIZE) + 12);
-            int check = dictionaryFile.readInt();
-            if(check == checker)
-                return false;
+    /**
+     *  Returns the postings for a specific term, or null
+     *  if the term is not in the index.
+     */
+    public PostingsList getPostings( String token ) {
+        PostingsCache c = cache;
+        if ( c == null )
+            return readPostings( token );
+        PostingsList list = c.get( token );
+        if ( list == null ) {
+            list = readPostings( token );
+            if ( list != null )
+                c.put( token, list );
+        }
+        return list;
+    }
 
 
-       }  catch ( IOException e ) {
-            // e.printStackTrace();
-        }     
-        return true;
+    /**
+     *  Keeps decoded postings in @code{cache}, or stops keeping them if
+     *  it is @code{null}.
+     */
+    public void setCache( PostingsCache cache ) {
+        this.cache = cache;
     }
 
-    // ==================================================================
+
+    /**
+     *  Loads the postings of the @code{n} terms with the highest document
+     *  frequency into the cache, most frequent first, skipping those that
+     *  no longer fit.
+     *
+     *  @return The number of lists loaded.
+     */
+    public int warmUp( int n ) {
+        PostingsCache c = cache;
+        if ( c == null || n <= 0 || !keyedDictionary || dataFormat == FORMAT_TEXT )
+            return 0;
+        mapFiles();
+        // The n most frequent terms so far, least frequent on top.
+        PriorityQueue<long[]> top = new PriorityQueue<long[]>( n, (a, b) -> Long.compare( a[0], b[0] ));
+        for ( long slot=0; slot<tableSize; slot++ ) {
+            Entry ent = readEntry( slotPtr( slot ));
+            if ( ent == null )
+                break;
+            if ( ent.byteSize <= 0 )
+                continue;
+            ByteBuffer record = readBuffer( ent.loc, ent.byteSize );
+            int termLength = PostingsCodec.readVB( record );
+            record.position( record.position() + termLength );
+            long df = PostingsCodec.readVB( record );
+            if ( top.size() < n ) {
+                top.add( new long[] { df, slot } );
+            } else if ( df > top.peek()[0] ) {
+                top.poll();
+                top.add( new long[] { df, slot } );
+            }
+        }
+        long[][] slots = top.toArray( new long[0][] );
+        Arrays.sort( slots, (a, b) -> Long.compare( b[0], a[0] ));
+        int loaded = 0;
+        for ( long[] slot : slots ) {
+            Entry ent = readEntry( slotPtr( slot[1] ));
+            ByteBuffer record = readBuffer( ent.loc, ent.byteSize );
+            byte[] term = new byte[PostingsCodec.readVB( record )];
+            record.get( term );
+            if ( c.preload( new String( term, StandardCharsets.UTF_8 ), decodePostings( record )))
+                loaded++;
+        }
+        return loaded;
+    }
 
 
     /**
-     *  Returns the postings for a specific term, or null
+     *  Reads the postings for a specific term from disk, or returns null
      *  if the term is not in the index.
      */
-    public PostingsList getPostings( String token ) {
-        long hashedToken = hashFunction(token);
-        Entry ent = readEntry(hashedToken * ENTRYSIZE);
-        int collisions = 0;
-        String posting;
-        if(ent == null)
-            return null;
+    PostingsList readPostings( String token ) {
+        ByteBuffer postings = findPostings( token );
+        return postings == null ? null : decodePostings( postings );
+    }
 
-        // while(checkCollision(hashedToken, token.hashCode())){
-        //     collisions++;
-        //     hashedToken = hashedToken + collisions;
-        //      if(hashedToken < 0||hashedToken >= TABLESIZE )
-        //         hashedToken = free;
-                
-        // }
-        ent = readEntry(hashedToken * ENTRYSIZE);
-        long location = ent.loc;
-        int size = ent.byteSize;
-        posting = readData(location, size);
-        
 
-    return toPosting(posting);
+    /**
+     *  Returns the stored postings of a term, as they are in the data
+     *  file, or null if the term is not in the index.
+     */
+    ByteBuffer findPostings( String token ) {
+        mapFiles();
+        if(!keyedDictionary){
+            Entry ent = readEntry(slotPtr(legacyHash(token)));
+            if(ent == null || ent.byteSize <= 0)
+                return null;
+            return readBuffer(ent.loc, ent.byteSize);
+        }
 
+        byte[] term = token.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(token);
+        int checker = fingerprint(hash);
+        long slot = Math.floorMod(hash, tableSize);
+        for(long probes = 0; probes < tableSize; probes++){
+            Entry ent = readEntry(slotPtr(slot));
+            if(ent == null || ent.byteSize <= 0)
+                return null;
+            if(ent.checker == checker){
+                ByteBuffer record = readBuffer(ent.loc, ent.byteSize);
+                if(matchTerm(record, term))
+                    return record;
+            }
+            slot = slot + 1 == tableSize ? 0 : slot + 1;
+        }
+        return null;
     }
     public PostingsList toPosting(String posting){
         PostingsList pl = new PostingsList();
@@ -324,12 +869,26 @@ public class PersistentHashedIndex implements Index {
      *  Inserts this token in the main-memory hashtable.
      */
     public void insert( String token, int docID, int offset ) {
-        if(getPostingsInt(token) != null)
-            getPostingsInt(token).add(docID, offset);
+        PostingsList list = getPostingsInt(token);
+        if(list != null){
+            int entries = list.size();
+            list.add(docID, offset);
+            if(list.size() != entries)
+                memoryUsed += ENTRY_BYTES;
+        }
         else{
             PostingsList temp = new PostingsList();
             temp.add(docID, offset);
             index.put(token, temp);
+            memoryUsed += TERM_BYTES + 2 * token.length() + ENTRY_BYTES;
+        }
+        memoryUsed += POSITION_BYTES;
+        if(memoryBudget > 0 && memoryUsed > memoryBudget){
+            try {
+                writeRun();
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
         }
     }
     public PostingsList getPostingsInt( String token ) {
@@ -343,15 +902,303 @@ public class PersistentHashedIndex implements Index {
      *  Write index to file after indexing is done.
      */
     public void cleanup() {
-        System.err.println( index.keySet().size() + " unique words" );
-        System.err.print( "Writing index to disk..." );
-        writeIndex();
+        if ( runs.isEmpty() ) {
+            System.err.println( index.keySet().size() + " unique words" );
+            System.err.print( "Writing index to disk..." );
+            writeIndex();
+        } else {
+            System.err.print( "Merging " + ( runs.size() + 1 ) + " runs..." );
+            try {
+                writeRun();
+                mergeRuns();
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
+        }
+        version++;
         System.err.println( "done!" );
     }
 
+
+    public long version() {
+        return version;
+    }
+
+
+    // ==================================================================
+    //
+    //  Sorted runs and their merge.
+
+
+    /**
+     *  Writes the in-memory index to a new run file, and empties the
+     *  in-memory index.
+     */
+    void writeRun() throws IOException {
+        writeRun( index );
+        index.clear();
+        memoryUsed = 0;
+    }
+
+
+    /**
+     *  Writes the given postings to a new run file, with the terms in
+     *  sorted order. Several indexing threads may write runs at once.
+     *
+     *  A run file starts with the number of terms. Every term is followed
+     *  by its postings list in the binary format.
+     */
+    void writeRun( Map<String,PostingsList> postings ) throws IOException {
+        File file;
+        synchronized ( runs ) {
+            file = new File( indexDir, RUN_FNAME + runs.size() );
+            runs.add( file );
+        }
+        String[] terms = postings.keySet().toArray( new String[0] );
+        Arrays.sort( terms );
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 ))) {
+            out.writeInt( terms.length );
+            for ( String term : terms ) {
+                byte[] bytes = term.getBytes( StandardCharsets.UTF_8 );
+                byte[] data = PostingsCodec.encode( postings.get( term ));
+                out.writeInt( bytes.length );
+                out.write( bytes );
+                out.writeInt( data.length );
+                out.write( data );
+            }
+        }
+    }
+
+
+    /**
+     *  Reads the terms of a run file in order.
+     */
+    static class RunReader implements Comparable<RunReader> {
+        final int run;
+        final DataInputStream in;
+        int remaining;
+        String term;
+        byte[] postings;
+
+        RunReader( File file, int run ) throws IOException {
+            this.run = run;
+            in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1 << 16 ));
+            remaining = in.readInt();
+        }
+
+        /** Moves to the next term, or returns false at the end of the run. */
+        boolean next() throws IOException {
+            if ( remaining == 0 ) {
+                in.close();
+                return false;
+            }
+            remaining--;
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully( bytes );
+            term = new String( bytes, StandardCharsets.UTF_8 );
+            postings = new byte[in.readInt()];
+            in.readFully( postings );
+            return true;
+        }
+
+        /** Runs are ordered on their current term, then on their age. */
+        public int compareTo( RunReader other ) {
+            int c = term.compareTo( other.term );
+            return c != 0 ? c : Integer.compare( run, other.run );
+        }
+    }
+
+
+    /**
+     *  Merges the run files into the dictionary and data files, and
+     *  deletes them. The postings of a term are merged on docID, since
+     *  runs written by different indexing threads hold interleaved
+     *  documents (see mergePostings).
+     */
+    void mergeRuns() throws IOException {
+        writeDocInfo();
+        unmapFiles();
+        free = writeDataHeader();
+
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+        long maxTerms = 0;
+        for ( int i=0; i<runs.size(); i++ ) {
+            RunReader reader = new RunReader( runs.get( i ), i );
+            maxTerms += reader.remaining;
+            if ( reader.next() )
+                queue.add( reader );
+        }
+        // The vocabulary is at most the sum of the run vocabularies.
+        TableBuilder builder = new TableBuilder( chooseTableSize( maxTerms ));
+        OutputStream out = new BufferedOutputStream( Channels.newOutputStream( dataFile.getChannel() ), 1 << 16 );
+        while ( !queue.isEmpty() ) {
+            String term = queue.peek().term;
+            ArrayList<PostingsList> parts = new ArrayList<PostingsList>();
+            while ( !queue.isEmpty() && queue.peek().term.equals( term )) {
+                RunReader reader = queue.poll();
+                parts.add( PostingsCodec.decode( reader.postings ));
+                if ( reader.next() )
+                    queue.add( reader );
+            }
+            PostingsList merged = mergePostings( parts );
+            byte[] record = encodeRecord( term, merged );
+            out.write( record );
+            builder.add( hash( term ), free, record.length );
+            free += record.length;
+        }
+        out.flush();
+        writeDictionary( builder );
+        // Shrink the table if many terms occurred in several runs.
+        if ( tableSize > 2 * chooseTableSize( numTerms ))
+            rehash( chooseTableSize( numTerms ));
+        else
+            System.err.print( builder.stats );
+        for ( File run : runs )
+            run.delete();
+        runs.clear();
+    }
+
+    /**
+     *  Merges the postings of a term from several runs, given in the
+     *  order the runs were written, into one list sorted on docID.
+     *
+     *  A run may be written in the middle of a document, so the first
+     *  entry of a term in a run can have the same docID as its last
+     *  entry in an earlier run. Such entries are joined into one, with
+     *  the positions of the earlier run first.
+     */
+    static PostingsList mergePostings( List<PostingsList> parts ) {
+        if ( parts.size() == 1 )
+            return parts.get( 0 );
+        int[] pos = new int[parts.size()];
+        PriorityQueue<Integer> heap = new PriorityQueue<Integer>( parts.size(), (a, b) -> {
+            int c = Integer.compare( parts.get( a ).get( pos[a] ).docID, parts.get( b ).get( pos[b] ).docID );
+            return c != 0 ? c : Integer.compare( a, b );
+        });
+        for ( int i=0; i<parts.size(); i++ ) {
+            if ( parts.get( i ).size() > 0 )
+                heap.add( i );
+        }
+        PostingsList merged = new PostingsList();
+        PostingsEntry last = null;
+        while ( !heap.isEmpty() ) {
+            int i = heap.poll();
+            PostingsEntry entry = parts.get( i ).get( pos[i] );
+            if ( last != null && last.docID == entry.docID ) {
+                for ( int j=0; j<entry.size(); j++ )
+                    last.addPos( entry.position( j ));
+            } else {
+                merged.add( entry );
+                last = entry;
+            }
+            if ( ++pos[i] < parts.get( i ).size() )
+                heap.add( i );
+        }
+        return merged;
+    }
+
+    // ==================================================================
+
+
+    /**
+     *  Converts an index with text postings into the binary format.
+     *  The dictionary slots are kept, so only the data pointers change.
+     *
+     *  @param fromDir The directory of the index in the text format.
+     *  @param toDir   The directory where the converted index is written.
+     */
+    public static void convert( String fromDir, String toDir ) throws IOException {
+        PersistentHashedIndex src = new PersistentHashedIndex( fromDir );
+        if ( src.dataFormat != FORMAT_TEXT ) {
+            System.err.println( "The index in " + fromDir + " is already in the binary format" );
+            return;
+        }
+        PersistentHashedIndex dst = new PersistentHashedIndex( toDir );
+        dst.dataFormat = PostingsCodec.VERSION;
+        dst.free = dst.writeDataHeader();
+        byte[] dictionary = new byte[(int)src.dictionaryFile.length()];
+        src.dictionaryFile.seek( 0 );
+        src.dictionaryFile.readFully( dictionary );
+        ByteBuffer table = ByteBuffer.wrap( dictionary );
+        int terms = 0;
+        for ( long slot=0; src.slotPtr( slot ) + ENTRYSIZE <= dictionary.length; slot++ ) {
+            int ptr = (int)src.slotPtr( slot );
+            int size = table.getInt( ptr + 8 );
+            if ( size <= 0 )
+                continue;
+            byte[] record = src.readData( table.getLong( ptr ), size );
+            // Records of keyed dictionaries start with the term, which is copied as it is.
+            int termSize = 0;
+            if ( src.keyedDictionary ) {
+                int length = PostingsCodec.readVB( ByteBuffer.wrap( record ));
+                termSize = PostingsCodec.vbSize( length ) + length;
+            }
+            byte[] postings = PostingsCodec.encode( src.toPosting( new String( record, termSize, size - termSize )), docLengths );
+            byte[] data = Arrays.copyOf( record, termSize + postings.length );
+            System.arraycopy( postings, 0, data, termSize, postings.length );
+            int written = dst.writeData( data, dst.free );
+            table.putLong( ptr, dst.free );
+            table.putInt( ptr + 8, written );
+            dst.free += written;
+            terms++;
+        }
+        dst.dictionaryFile.setLength( 0 );
+        dst.dictionaryFile.seek( 0 );
+        dst.dictionaryFile.write( dictionary );
+        dst.writeDocInfo();
+        System.err.println( "Converted " + terms + " postings lists: " + src.dataFile.length() +
+                            " bytes -> " + dst.dataFile.length() + " bytes" );
+        src.dataFile.close();
+        src.dictionaryFile.close();
+        dst.dataFile.close();
+        dst.dictionaryFile.close();
+    }
+
+
+    public static void main( String[] args ) throws IOException {
+        if ( args.length == 3 && "-convert".equals( args[0] )) {
+            convert( args[1], args[2] );
+        } else if ( args.length == 2 && "-stats".equals( args[0] )) {
+            PersistentHashedIndex index = new PersistentHashedIndex( args[1] );
+            System.out.print( index.probeStatistics() );
+            System.out.println( "Table size for this vocabulary: " + chooseTableSize( index.numTerms ));
+        } else {
+            System.err.println( "Usage: java ir.PersistentHashedIndex -convert <text index dir> <binary index dir>" );
+            System.err.println( "       java ir.PersistentHashedIndex -stats <index dir>" );
+        }
+    }
+
+
+    /**
+     *  64-bit hash of a term: FNV-1a over the characters, followed by
+     *  the finalizer of MurmurHash3 so that all bits are well mixed.
+     *  The low bits choose the slot, the high bits the fingerprint.
+     */
+    static long hash(String term){
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < term.length(); i++){
+            hash ^= term.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+
+    /** The fingerprint stored in the dictionary to verify a slot. */
+    static int fingerprint(long hash){
+        return (int)(hash >>> 32);
+    }
+
+
     // https://stackoverflow.com/questions/2624192/good-hash-function-for-strings
     //https://computinglife.wordpress.com/2008/11/20/why-do-hash-functions-use-prime-numbers/
-    public long hashFunction(String term){
+    /** The slot of a term in dictionaries of the old layout. */
+    static long legacyHash(String term){
         long hash = 7;
         for(int i = 0; i < term.length(); i++)
             hash = (hash * 31 + term.charAt(i));
@@ -0,0 +1,158 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+
+/**
+ *   Compares the text and the binary postings formats of the
+ *   persistent index: size of the data file and getPostings latency.
+ *   With a memory budget, the directory is also indexed through sorted
+ *   runs, by one or more threads, and the stored postings are checked
+ *   against those of the index built in memory.
+ */
+public class PostingsBenchmark {
+
+    String dirName = null;
+    String patternsFile = null;
+    String outDir = "bench_index";
+    int rounds = 5;
+    long memoryBudget = 0;
+    int threads = 1;
+
+
+    /**
+     *  Indexes the directory into a text index, converts it into a binary
+     *  index and looks up every term of the vocabulary in both of them.
+     */
+    void run() throws IOException {
+        File textDir = new File( outDir, "text" );
+        File binaryDir = new File( outDir, "binary" );
+        textDir.mkdirs();
+        binaryDir.mkdirs();
+
+        PersistentHashedIndex text = new PersistentHashedIndex( textDir.getPath() );
+        text.dataFormat = PersistentHashedIndex.FORMAT_TEXT;
+        Indexer indexer = new Indexer( text, null, patternsFile );
+        indexer.processFiles( new File( dirName ), true );
+        text.cleanup();
+        PersistentHashedIndex.convert( textDir.getPath(), binaryDir.getPath() );
+        PersistentHashedIndex binary = new PersistentHashedIndex( binaryDir.getPath() );
+
+        ArrayList<String> terms = new ArrayList<String>( text.index.keySet() );
+        int mismatches = 0;
+        for ( String term : terms ) {
+            String expected = text.index.get( term ).toString();
+            PostingsList a = text.getPostings( term );
+            PostingsList b = binary.getPostings( term );
+            if ( a == null || b == null || !a.toString().equals( expected ) || !b.toString().equals( expected ))
+                mismatches++;
+        }
+
+        System.out.println( "terms:            " + terms.size() );
+        System.out.println( "mismatches:       " + mismatches );
+        System.out.println( "text data:        " + text.dataFile.length() + " bytes" );
+        System.out.println( "binary data:      " + binary.dataFile.length() + " bytes" );
+        System.out.println( String.format( "text lookup:      %.2f us/term", lookupTime( text, terms )));
+        System.out.println( String.format( "binary lookup:    %.2f us/term", lookupTime( binary, terms )));
+        if ( memoryBudget > 0 )
+            checkBudget( text, terms );
+    }
+
+
+    /**
+     *  Indexes the directory under the memory budget, and compares the
+     *  stored postings of every term, including the document frequency
+     *  and the score upper bounds, with those of the in-memory index.
+     */
+    void checkBudget( PersistentHashedIndex text, List<String> terms ) {
+        File budgetDir = new File( outDir, "budget" );
+        budgetDir.mkdirs();
+        PersistentHashedIndex budget = new PersistentHashedIndex( budgetDir.getPath(), memoryBudget );
+        Indexer indexer = new Indexer( budget, null, patternsFile, threads );
+        indexer.processFiles( new File( dirName ), true );
+        int runs = budget.runs.size() + 1;
+        budget.cleanup();
+        int mismatches = 0;
+        for ( String term : terms ) {
+            byte[] expected = PostingsCodec.encode( text.index.get( term ), Index.docLengths );
+            ByteBuffer stored = budget.findPostings( term );
+            if ( stored == null || !stored.equals( ByteBuffer.wrap( expected )))
+                mismatches++;
+        }
+        System.out.println( "budget runs:      " + runs );
+        System.out.println( "budget mismatches: " + mismatches );
+    }
+
+
+    /**
+     *  Returns the average time in microseconds of one getPostings call.
+     */
+    double lookupTime( Index index, List<String> terms ) {
+        // Warm-up round, so that both formats run JIT-compiled code.
+        for ( String term : terms )
+            index.getPostings( term );
+        long start = System.nanoTime();
+        for ( int r=0; r<rounds; r++ ) {
+            for ( String term : terms )
+                index.getPostings( term );
+        }
+        return ( System.nanoTime() - start ) / 1000.0 / rounds / terms.size();
+    }
+
+
+    /** Prints usage information. */
+    static void printHelpMessage() {
+        System.err.println( "The following parameters are available: " );
+        System.err.println( "  -d <dirname> : directory to be indexed (mandatory)" );
+        System.err.println( "  -p <filename> : name of the file containing regular expressions for non-standard words (optional)" );
+        System.err.println( "  -o <dirname> : directory for the benchmark indexes (default bench_index)" );
+        System.err.println( "  -r <number> : number of lookup rounds (default 5)" );
+        System.err.println( "  -mb <bytes> : also check an index built from sorted runs under this memory budget (optional)" );
+        System.err.println( "  -t <number> : number of threads building the index under the memory budget (default 1)" );
+    }
+
+
+    public static void main( String[] args ) throws IOException {
+        PostingsBenchmark b = new PostingsBenchmark();
+        int i=0;
+        while ( i<args.length ) {
+            if ( "-d".equals( args[i] ) && i+1<args.length ) {
+                b.dirName = args[i+1];
+                i += 2;
+            } else if ( "-p".equals( args[i] ) && i+1<args.length ) {
+                b.patternsFile = args[i+1];
+                i += 2;
+            } else if ( "-o".equals( args[i] ) && i+1<args.length ) {
+                b.outDir = args[i+1];
+                i += 2;
+            } else if ( "-r".equals( args[i] ) && i+1<args.length ) {
+                b.rounds = Integer.parseInt( args[i+1] );
+                i += 2;
+            } else if ( "-mb".equals( args[i] ) && i+1<args.length ) {
+                b.memoryBudget = Long.parseLong( args[i+1] );
+                i += 2;
+            } else if ( "-t".equals( args[i] ) && i+1<args.length ) {
+                b.threads = Integer.parseInt( args[i+1] );
+                i += 2;
+            } else {
+                System.err.println( "Unrecognized parameter: " + args[i] );
+                printHelpMessage();
+                return;
+            }
+        }
+        if ( b.dirName == null ) {
+            printHelpMessage();
+            return;
+        }
+        b.run();
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2018
+ */
+
+package ir;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ *   Keeps decoded postings lists of a persistent index in memory, so that
+ *   the lists of popular terms are not read and decoded again for every
+ *   query.
+ *
+ *   The cache is bounded by the estimated size of the lists in bytes
+ *   (see PostingsList.bytes). Lists are evicted least recently used first,
+ *   but a list that would evict others is only admitted if its term has
+ *   been asked for more often than all of them (TinyLFU). How often terms
+ *   are asked for is estimated by a count-min sketch, in which all counts
+ *   are halved now and then, so that old popularity fades. A scan through
+ *   many rare terms therefore cannot push the lists of common terms out.
+ *
+ *   The cached lists are shared by all readers and must not be changed.
+ *   All methods are synchronized, so the cache can be used by any number
+ *   of searching threads; reading and decoding a list that is not cached
+ *   happens outside the lock.
+ */
+public class PostingsCache {
+
+    /** Estimated bytes of a cache entry besides its term and list. */
+    static final int OVERHEAD_BYTES = 96;
+
+    /** The memory budget in bytes. */
+    private final long budget;
+
+    /** The cached lists, from least to most recently used. */
+    private final LinkedHashMap<String,Cached> cache = new LinkedHashMap<String,Cached>( 16, 0.75f, true );
+
+    /** Estimated bytes used by the cached lists. */
+    private long used = 0;
+
+    /** Estimated number of lookups of every term. */
+    private final FrequencySketch sketch;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long rejections = 0;
+
+    private static class Cached {
+        final PostingsList list;
+        final long bytes;
+
+        Cached( PostingsList list, long bytes ) {
+            this.list = list;
+            this.bytes = bytes;
+        }
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *  Creates a cache holding at most @code{budget} bytes of postings.
+     */
+    public PostingsCache( long budget ) {
+        this.budget = budget;
+        // Room to count the lookups of about as many terms as there
+        // are kilobytes in the budget, within reasonable limits.
+        this.sketch = new FrequencySketch( (int)Math.min( 1 << 20, Math.max( 1 << 16, budget >> 10 )));
+    }
+
+
+    /**
+     *  Returns the cached postings of the term, or @code{null} if they
+     *  are not cached. The lookup counts towards the popularity of the term.
+     */
+    public synchronized PostingsList get( String term ) {
+        sketch.increment( term );
+        Cached c = cache.get( term );
+        if ( c == null ) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return c.list;
+    }
+
+
+    /**
+     *  Offers the postings of a term that were just read. They are cached
+     *  if there is room, or if the term is more popular than each of the
+     *  least recently used lists that would have to make room for it.
+     */
+    public synchronized void put( String term, PostingsList list ) {
+        long bytes = OVERHEAD_BYTES + 2L * term.length() + list.bytes();
+        if ( bytes > budget || cache.containsKey( term ))
+            return;
+        if ( used + bytes > budget ) {
+            int frequency = sketch.frequency( term );
+            long freed = 0;
+            for ( Map.Entry<String,Cached> victim : cache.entrySet() ) {
+                if ( used - freed + bytes <= budget )
+                    break;
+                if ( sketch.frequency( victim.getKey() ) >= frequency ) {
+                    rejections++;
+                    return;
+                }
+                freed += victim.getValue().bytes;
+            }
+        }
+        add( term, list, bytes );
+    }
+
+
+    /**
+     *  Caches the postings of a term if they fit without evicting any
+     *  other list, e.g. when warming up the cache.
+     *
+     *  @return false if there was no room for the list.
+     */
+    public synchronized boolean preload( String term, PostingsList list ) {
+        long bytes = OVERHEAD_BYTES + 2L * term.length() + list.bytes();
+        if ( used + bytes > budget )
+            return false;
+        if ( !cache.containsKey( term ))
+            add( term, list, bytes );
+        return true;
+    }
+
+
+    /** Adds a list, evicting the least recently used ones to stay within budget. */
+    private void add( String term, PostingsList list, long bytes ) {
+        Iterator<Map.Entry<String,Cached>> it = cache.entrySet().iterator();
+        while ( used + bytes > budget && it.hasNext() ) {
+            used -= it.next().getValue().bytes;
+            it.remove();
+            evictions++;
+        }
+        cache.put( term, new Cached( list, bytes ));
+        used += bytes;
+    }
+
+
+    /** Empties the cache, when the index is rewritten. */
+    public synchronized void clear() {
+        cache.clear();
+        used = 0;
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /** Number of lists that were not admitted, as their terms were less popular. */
+    public synchronized long rejections() {
+        return rejections;
+    }
+
+    /** The fraction of lookups that were hits. */
+    public synchronized double hitRate() {
+        return hits + misses == 0 ? 0 : (double)hits / ( hits + misses );
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /** Estimated number of bytes used by the cached lists. */
+    public synchronized long bytes() {
+        return used;
+    }
+
+    public synchronized String toString() {
+        return String.format( "%d lists, %d bytes, %d hits, %d misses (hit rate %.3f), %d evictions, %d rejections",
+                              cache.size(), used, hits, misses, hitRate(), evictions, rejections );
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *   A count-min sketch of 4-bit counters: every term is counted in one
+     *   counter of each of four rows, and its estimated count is the
+     *   smallest of the four. After ten times as many increments as there
+     *   are counters in a row, all counters are halved.
+     */
+    static class FrequencySketch {
+
+        static final int ROWS = 4;
+        static final int MAX_COUNT = 15;
+
+        private static final int[] SEEDS = { 0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f };
+
+        /** The counters, row after row. */
+        private final byte[] counters;
+
+        /** Number of counters per row, a power of two. */
+        private final int width;
+
+        private final int sampleSize;
+        private int increments = 0;
+
+
+        FrequencySketch( int width ) {
+            this.width = Integer.highestOneBit( width );
+            this.counters = new byte[ROWS * this.width];
+            this.sampleSize = 10 * this.width;
+        }
+
+
+        private int index( int hash, int row ) {
+            int h = ( hash ^ SEEDS[row] ) * 0x9e3779b1;
+            h ^= h >>> 16;
+            return row * width + ( h & ( width - 1 ));
+        }
+
+
+        void increment( String term ) {
+            int hash = term.hashCode();
+            boolean added = false;
+            for ( int row=0; row<ROWS; row++ ) {
+                int i = index( hash, row );
+                if ( counters[i] < MAX_COUNT ) {
+                    counters[i]++;
+                    added = true;
+                }
+            }
+            if ( added && ++increments == sampleSize ) {
+                for ( int i=0; i<counters.length; i++ )
+                    counters[i] >>= 1;
+                increments /= 2;
+            }
+        }
+
+
+        int frequency( String term ) {
+            int hash = term.hashCode();
+            int min = MAX_COUNT;
+            for ( int row=0; row<ROWS; row++ )
+                min = Math.min( min, counters[index( hash, row )] );
+            return min;
+        }
+    }
+}
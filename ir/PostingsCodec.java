@@ -0,0 +1,201 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2018
+ */
+
+package ir;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+
+/**
+ *   Binary on-disk representation of a PostingsList.
+ *
+ *   A list is stored as the variable-byte encoded number of entries,
+ *   followed by one record per entry: the gap to the previous docID,
+ *   the number of positions, and the gaps between consecutive positions.
+ *   Every number is written in variable-byte form: seven payload bits
+ *   per byte, and the high bit is set on the last byte of a number.
+ *
+ *   Since version 2, the number of entries is followed by the number of
+ *   score upper bounds, and the bounds themselves as float bits: the
+ *   largest tf/length in every block of PostingsList.BLOCK_SIZE entries
+ *   (see PostingsList.blockMax). Lists written without document lengths
+ *   have no bounds.
+ */
+public class PostingsCodec {
+
+    /** Version of the binary postings format written by this codec. */
+    public static final int VERSION = 2;
+
+    /** The oldest version that can still be read. */
+    public static final int MIN_VERSION = 1;
+
+    /** Growable output buffer, so that encoding does not go through streams. */
+    private byte[] out = new byte[256];
+
+    /** Number of bytes used in @code{out}. */
+    private int length = 0;
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *  Encodes a postings list without score upper bounds. The list is
+     *  assumed to be sorted on docID, and the positions of every entry
+     *  in increasing order.
+     */
+    public static byte[] encode( PostingsList list ) {
+        return encode( list, null );
+    }
+
+
+    /**
+     *  Encodes a postings list with the score upper bounds computed from
+     *  the given document lengths, unless they are @code{null}.
+     */
+    public static byte[] encode( PostingsList list, Map<Integer,Integer> docLengths ) {
+        PostingsCodec codec = new PostingsCodec();
+        codec.writeList( list, docLengths == null ? null : list.blockMax( docLengths ));
+        return Arrays.copyOf( codec.out, codec.length );
+    }
+
+
+    /**
+     *  Decodes a postings list in the current format starting at the
+     *  current position of @code{buf}. The position is advanced past
+     *  the list.
+     */
+    public static PostingsList decode( ByteBuffer buf ) {
+        return decode( buf, VERSION );
+    }
+
+
+    /**
+     *  Decodes a postings list written in the given format version.
+     */
+    public static PostingsList decode( ByteBuffer buf, int version ) {
+        PostingsList list = new PostingsList();
+        int size = readVB( buf );
+        float[] blockMax = null;
+        if ( version >= 2 ) {
+            int blocks = readVB( buf );
+            if ( blocks > 0 ) {
+                blockMax = new float[blocks];
+                for ( int b=0; b<blocks; b++ )
+                    blockMax[b] = Float.intBitsToFloat( readVB( buf ));
+            }
+        }
+        int docID = 0;
+        for ( int i=0; i<size; i++ ) {
+            docID += readVB( buf );
+            int tf = readVB( buf );
+            int pos = 0;
+            for ( int j=0; j<tf; j++ ) {
+                pos += readVB( buf );
+                list.add( docID, pos );
+            }
+        }
+        if ( blockMax != null )
+            list.setBlockMax( blockMax );
+        return list;
+    }
+
+
+    /**
+     *  Decodes a postings list from a byte array.
+     */
+    public static PostingsList decode( byte[] data ) {
+        return decode( ByteBuffer.wrap( data ));
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    private void writeList( PostingsList list, float[] blockMax ) {
+        writeVB( list.size() );
+        if ( blockMax == null ) {
+            writeVB( 0 );
+        } else {
+            writeVB( blockMax.length );
+            for ( float b : blockMax )
+                writeVB( Float.floatToIntBits( b ));
+        }
+        int lastDocID = 0;
+        for ( int i=0; i<list.size(); i++ ) {
+            PostingsEntry e = list.get( i );
+            writeVB( e.docID - lastDocID );
+            lastDocID = e.docID;
+            writeVB( e.size() );
+            int lastPos = 0;
+            for ( int j=0; j<e.size(); j++ ) {
+                writeVB( e.position( j ) - lastPos );
+                lastPos = e.position( j );
+            }
+        }
+    }
+
+
+    /**
+     *  Appends a non-negative integer in variable-byte form.
+     */
+    private void writeVB( int n ) {
+        if ( length + 5 > out.length ) {
+            out = Arrays.copyOf( out, out.length * 2 );
+        }
+        while ( n >= 128 ) {
+            out[length++] = (byte)( n & 127 );
+            n >>>= 7;
+        }
+        out[length++] = (byte)( n | 128 );
+    }
+
+
+    /**
+     *  Returns the number of bytes needed for @code{n} in variable-byte form.
+     */
+    static int vbSize( int n ) {
+        int size = 1;
+        while ( n >= 128 ) {
+            n >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+
+    /**
+     *  Writes @code{n} in variable-byte form into @code{buf} at @code{pos}.
+     *
+     *  @return The position after the written bytes.
+     */
+    static int putVB( byte[] buf, int pos, int n ) {
+        while ( n >= 128 ) {
+            buf[pos++] = (byte)( n & 127 );
+            n >>>= 7;
+        }
+        buf[pos++] = (byte)( n | 128 );
+        return pos;
+    }
+
+
+    /**
+     *  Reads a variable-byte encoded integer.
+     */
+    static int readVB( ByteBuffer buf ) {
+        int n = 0;
+        int shift = 0;
+        byte b;
+        while ( (b = buf.get()) >= 0 ) {
+            n |= b << shift;
+            shift += 7;
+        }
+        return n | ((b & 127) << shift);
+    }
+}
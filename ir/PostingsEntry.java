@@ -9,17 +9,37 @@ package ir;
 
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.StringTokenizer;
 import java.io.Serializable;
-import java.util.LinkedList;
 
 
 public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
 
     public int docID;
     public double score = 0;
-    public LinkedList<Integer> positions = new LinkedList<Integer>();
+
+    /** Shared by all entries without positions. */
+    private static final int[] NO_POSITIONS = new int[0];
+
+    /**
+     *  The positions of the term in the document, in increasing order.
+     *  Only the first @code{numPositions} elements are used.
+     */
+    private int[] positions = NO_POSITIONS;
+    private int numPositions = 0;
+
+    public PostingsEntry(){
+    }
+
+    /**
+     *  Creates a result entry, without positions, for a document and its score.
+     */
+    public PostingsEntry( int docID, double score ){
+        this.docID = docID;
+        this.score = score;
+    }
 
     /**
      *  PostingsEntries are compared by their score (only relevant
@@ -37,13 +57,21 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
         this.docID = docID;
     }
     public void addPos(int offset){
-        positions.add(offset);
+        if(numPositions == positions.length)
+            positions = Arrays.copyOf(positions, Math.max(2, 2 * numPositions));
+        positions[numPositions++] = offset;
+    }
+
+    /** Returns the ith position of the term in the document. */
+    public int position(int i){
+        return positions[i];
     }
     public void setScore(double score){
         this.score = score;
     }
+    /** The number of positions, i.e. the term frequency. */
     public int size(){
-        return positions.size();
+        return numPositions;
     }
 }
 
@@ -10,15 +10,47 @@ package ir;
 import java.util.ArrayList;
 
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Collections;
+import java.util.Map;
+import java.util.PriorityQueue;
 public class PostingsList {
+
+    /** Number of postings per block of score upper bounds. */
+    public static final int BLOCK_SIZE = 64;
     
     /** The postings list */
     private ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>();
     private int oldDoc = -1;
     private int counter = -1;
 
+    /**
+     *  Number of entries at the start of the list that are in their final
+     *  order by score (see sortTopK).
+     */
+    private int ranked = 0;
+
+    /**
+     *  The largest tf/length in every block of BLOCK_SIZE postings,
+     *  rounded up to a float, or @code{null} if not known yet. The
+     *  bounds may be computed by any of the threads searching the
+     *  index, so they are published together with the list size in
+     *  one immutable object.
+     */
+    private volatile BlockMax blockMax = null;
+
+    private static final class BlockMax {
+        final float[] bounds;
+        final int size;
+
+        BlockMax( float[] bounds, int size ) {
+            this.bounds = bounds;
+            this.size = size;
+        }
+    }
+
+    /** Estimated bytes of an entry without positions, including its slot in the list. */
+    static final int ENTRY_BYTES = 36;
+
     /** Number of postings in this list. */
     public int size() {
     return list.size();
@@ -45,28 +77,78 @@ public class PostingsList {
         }
     }
         
-        /** For small posting list when we want to do intersect
-        search and we dont need the offset*/
-        public void add(int docID){
-        boolean docExist = false;
-
-        for (int i = 0; i < list.size(); i++){
-            if(get(i).docID == docID){
-                docExist = true;
-            }
-                
-        }
-        if(!docExist){
-            PostingsEntry temp = new PostingsEntry();
-            temp.add(docID);
-            list.add(temp);
-        }
+    /**
+     *  Adds a document without positions, unless it is already the last
+     *  one. The list is built in docID order, so only the last entry can
+     *  have the same docID.
+     */
+    public void add(int docID){
+        if(!list.isEmpty() && list.get(list.size() - 1).docID == docID)
+            return;
+        PostingsEntry temp = new PostingsEntry();
+        temp.add(docID);
+        list.add(temp);
     }
 
     public void add(PostingsEntry p){
         list.add(p);
     }
 
+    /**
+     *  Returns the estimated number of bytes used by the list and its
+     *  entries, for caches that are bounded by memory.
+     */
+    public long bytes(){
+        long bytes = 64 + (long)ENTRY_BYTES * list.size();
+        for(int i = 0; i < list.size(); i++){
+            int positions = list.get(i).size();
+            if(positions > 0)
+                bytes += 16 + 4L * positions;
+        }
+        return bytes;
+    }
+
+    /**
+     *  Returns a new list with the same entries, in the same order and
+     *  ranked as far as this one, that can be reordered independently.
+     */
+    public PostingsList copy(){
+        PostingsList c = new PostingsList();
+        c.list = new ArrayList<PostingsEntry>(list);
+        c.oldDoc = oldDoc;
+        c.counter = counter;
+        c.ranked = ranked;
+        return c;
+    }
+
+    /**
+     *  Returns the position of the first entry at or after position
+     *  @code{from} with a docID not less than @code{docID}, or size()
+     *  if there is none. The list is searched by galloping: steps of
+     *  1, 2, 4, ... entries, followed by a binary search in the last
+     *  step, so skipping over m entries costs O(log m).
+     */
+    public int advance( int from, int docID ){
+        int n = list.size();
+        int lo = from;
+        int hi = from;
+        int step = 1;
+        while ( hi < n && list.get( hi ).docID < docID ) {
+            lo = hi + 1;
+            hi = from + step;
+            step *= 2;
+        }
+        hi = Math.min( hi, n );
+        while ( lo < hi ) {
+            int mid = ( lo + hi ) >>> 1;
+            if ( list.get( mid ).docID < docID )
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
     public boolean contains(PostingsEntry e){
         return list.contains( e);
     }
@@ -84,13 +166,12 @@ public class PostingsList {
 
     public  String toString(){
         StringBuilder s = new StringBuilder();
-        LinkedList<Integer> p;
         for(int i = 0; i < list.size(); i++){
-            s.append(list.get(i).docID);
+            PostingsEntry e = list.get(i);
+            s.append(e.docID);
             s.append(" ");
-            p = list.get(i).positions;
-            for(int item : p ){
-                s.append(item);
+            for(int j = 0; j < e.size(); j++){
+                s.append(e.position(j));
                 s.append(" ");
             }
             s.append("\n");
@@ -101,6 +182,101 @@ public class PostingsList {
 
     public void sortScore(){
         Collections.sort(list);
+        ranked = list.size();
+    }
+
+
+    /**
+     *  Makes sure that the first @code{k} entries are the @code{k} entries
+     *  with the highest scores, in the same order as sortScore() would put
+     *  them. The rest of the list is left unsorted, so this only costs
+     *  O(n log k). Calling it again with a larger @code{k} continues from
+     *  the entries that are already in place.
+     */
+    public void sortTopK( int k ){
+        if ( k >= list.size() ) {
+            if ( ranked < list.size() )
+                sortScore();
+            return;
+        }
+        if ( k <= ranked ) {
+            return;
+        }
+        // Bounded heap over the unranked entries, with the worst of the
+        // best entries seen so far on top. Ties are broken on the position
+        // in the list, like the stable sort in sortScore().
+        int wanted = k - ranked;
+        PriorityQueue<Integer> heap = new PriorityQueue<Integer>( wanted, (a, b) -> compareRank( b, a ) );
+        for ( int i=ranked; i<list.size(); i++ ) {
+            if ( heap.size() < wanted ) {
+                heap.add( i );
+            } else if ( compareRank( i, heap.peek() ) < 0 ) {
+                heap.poll();
+                heap.add( i );
+            }
+        }
+        boolean[] chosen = new boolean[list.size()];
+        PostingsEntry[] best = new PostingsEntry[wanted];
+        for ( int j=wanted-1; j>=0; j-- ) {
+            int i = heap.poll();
+            chosen[i] = true;
+            best[j] = list.get( i );
+        }
+        ArrayList<PostingsEntry> reordered = new ArrayList<PostingsEntry>( list.size() );
+        reordered.addAll( list.subList( 0, ranked ));
+        Collections.addAll( reordered, best );
+        for ( int i=ranked; i<list.size(); i++ ) {
+            if ( !chosen[i] )
+                reordered.add( list.get( i ));
+        }
+        list = reordered;
+        ranked = k;
+    }
+
+
+    /**
+     *  Returns the upper bounds of tf/length of the postings in every
+     *  block of BLOCK_SIZE postings, computing them if they are not known
+     *  or the list has grown since. An index computes them when it is
+     *  committed (and stores them with the postings, if it is on disk),
+     *  so that ranked retrieval can skip documents that cannot make it
+     *  into the top results.
+     */
+    public float[] blockMax( Map<Integer,Integer> docLengths ){
+        BlockMax known = blockMax;
+        if ( known != null && known.size == list.size() )
+            return known.bounds;
+        float[] bounds = new float[( list.size() + BLOCK_SIZE - 1 ) / BLOCK_SIZE];
+        for ( int i = 0; i < list.size(); i++ ) {
+            PostingsEntry e = list.get( i );
+            float impact = roundUp( (double)e.size() / docLengths.get( e.docID ));
+            bounds[i / BLOCK_SIZE] = Math.max( bounds[i / BLOCK_SIZE], impact );
+        }
+        setBlockMax( bounds );
+        return bounds;
+    }
+
+
+    /** Sets the block upper bounds, e.g. when read from disk. */
+    void setBlockMax( float[] bounds ){
+        blockMax = new BlockMax( bounds, list.size() );
+    }
+
+
+    /** Returns the smallest float that is not less than @code{x}. */
+    static float roundUp( double x ){
+        float f = (float)x;
+        return f < x ? Math.nextUp( f ) : f;
+    }
+
+
+    /**
+     *  Compares the entries at positions i and j: the one with the higher
+     *  score comes first, and on equal scores the one earlier in the list.
+     */
+    private int compareRank( int i, int j ){
+        int c = list.get( i ).compareTo( list.get( j ));
+        return c != 0 ? c : Integer.compare( i, j );
     }
 
 
@@ -0,0 +1,91 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2018
+ */
+
+package ir;
+
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+/**
+ *   Merges any number of postings lists, each sorted on docID, into one
+ *   stream of distinct docIDs in increasing order.
+ *
+ *   The lists are kept in a heap on the docID at their current position,
+ *   so producing the union of k lists with n postings in total costs
+ *   O(n log k), however much the lists overlap.
+ */
+public class PostingsUnion {
+
+    /** Returned by next() when all lists are exhausted. */
+    public static final int END = Integer.MAX_VALUE;
+
+    /** The merged lists. */
+    private final PostingsList[] lists;
+
+    /** The current position in every list. */
+    private final int[] pos;
+
+    /** Indices of the lists that are not exhausted, on their current docID. */
+    private final PriorityQueue<Integer> heap;
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *  Creates a union of the given lists. @code{null} lists are treated
+     *  as empty, like the postings of a term that is not in the index.
+     */
+    public PostingsUnion( List<PostingsList> lists ) {
+        this.lists = lists.toArray( new PostingsList[0] );
+        this.pos = new int[this.lists.length];
+        this.heap = new PriorityQueue<Integer>( Math.max( 1, this.lists.length ),
+                                                (a, b) -> Integer.compare( docID( a ), docID( b )));
+        for ( int i=0; i<this.lists.length; i++ ) {
+            if ( this.lists[i] != null && this.lists[i].size() > 0 )
+                heap.add( i );
+        }
+    }
+
+
+    /** The docID at the current position of list @code{i}. */
+    private int docID( int i ) {
+        return lists[i].get( pos[i] ).docID;
+    }
+
+
+    /**
+     *  Returns the next docID that is in at least one of the lists,
+     *  or END if there is none.
+     */
+    public int next() {
+        if ( heap.isEmpty() )
+            return END;
+        int docID = docID( heap.peek() );
+        // Move every list that is on this docID one step forward.
+        while ( !heap.isEmpty() && docID( heap.peek() ) == docID ) {
+            int i = heap.poll();
+            if ( ++pos[i] < lists[i].size() )
+                heap.add( i );
+        }
+        return docID;
+    }
+
+
+    /**
+     *  Returns the documents that are in at least one of the lists,
+     *  sorted on docID, as entries with score 0 and no positions.
+     */
+    public static PostingsList union( List<PostingsList> lists ) {
+        PostingsUnion union = new PostingsUnion( lists );
+        PostingsList answer = new PostingsList();
+        for ( int docID = union.next(); docID != END; docID = union.next() )
+            answer.add( new PostingsEntry( docID, 0 ));
+        return answer;
+    }
+}
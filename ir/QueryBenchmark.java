@@ -0,0 +1,297 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2017
+ */
+
+package ir;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ *   Measures the latency of ranked and intersection queries on an
+ *   in-memory index of a directory. The queries are read from a query
+ *   log, one per line, or made of the most common terms, since those
+ *   match the most documents and are the slowest to rank.
+ *
+ *   Top-k queries are run with every evaluation type (or the one given
+ *   with -e), and their results are checked against term-at-a-time
+ *   evaluation. With -c, the queries are also replayed from several
+ *   threads at once, to measure the throughput of concurrent searches.
+ *   With -mb, the directory is also indexed into a persistent index
+ *   under that memory budget, and the top-k queries are run on it and
+ *   checked against the results of the in-memory index.
+ */
+public class QueryBenchmark {
+
+    String dirName = null;
+    String patternsFile = null;
+    String queryLog = null;
+    EvaluationType evaluation = null;
+    int numQueries = 200;
+    int maxTerms = 3;
+    int k = SearchGUI.MAX_RESULTS;
+    long seed = 1;
+    int maxThreads = 0;
+    long memoryBudget = 0;
+    String outDir = "bench_index/query";
+
+    /** How many times the query log is replayed when measuring throughput. */
+    int replays = 5;
+
+    HashedIndex index = new HashedIndex();
+    Searcher searcher;
+    ArrayList<Query> queries = new ArrayList<Query>();
+
+
+    /** Reads the queries of the query log. */
+    void readQueries() throws IOException {
+        try ( BufferedReader in = new BufferedReader( new FileReader( queryLog ))) {
+            String line;
+            while (( line = in.readLine() ) != null ) {
+                line = line.toLowerCase().trim();
+                if ( line.length() > 0 )
+                    queries.add( new Query( line ));
+            }
+        }
+    }
+
+
+    /**
+     *  Makes random queries of 1 to @code{maxTerms} terms, drawn from
+     *  the 100 terms with the highest document frequency.
+     */
+    void makeQueries() {
+        ArrayList<String> terms = new ArrayList<String>( index.terms() );
+        terms.sort( (a, b) -> index.getPostings( b ).size() - index.getPostings( a ).size() );
+        List<String> common = terms.subList( 0, Math.min( 100, terms.size() ));
+        Random random = new Random( seed );
+        for ( int q=0; q<numQueries; q++ ) {
+            StringBuilder sb = new StringBuilder();
+            int n = 1 + random.nextInt( maxTerms );
+            for ( int i=0; i<n; i++ ) {
+                sb.append( common.get( random.nextInt( common.size() ))).append( ' ' );
+            }
+            queries.add( new Query( sb.toString() ));
+        }
+    }
+
+
+    /**
+     *  Runs all queries, asking for the @code{k} best results, and prints
+     *  the median and the 99th percentile of the latencies.
+     *
+     *  @return The top k results of every query.
+     */
+    String[] measure( String name, EvaluationType evaluation, int k ) {
+        searcher.evaluation = evaluation;
+        // Warm-up round
+        for ( Query query : queries )
+            searcher.search( query, QueryType.RANKED_QUERY, RankingType.TF_IDF, NormalizationType.NUMBER_OF_WORDS, k );
+        long[] times = new long[queries.size()];
+        String[] results = new String[queries.size()];
+        for ( int q=0; q<queries.size(); q++ ) {
+            long start = System.nanoTime();
+            PostingsList result = searcher.search( queries.get( q ), QueryType.RANKED_QUERY, RankingType.TF_IDF, NormalizationType.NUMBER_OF_WORDS, k );
+            times[q] = System.nanoTime() - start;
+            results[q] = topK( result, Math.min( k, this.k ));
+        }
+        Arrays.sort( times );
+        System.out.print( String.format( "%-26s p50 %8.3f ms   p99 %8.3f ms",
+                                         name, percentile( times, 0.5 ) / 1e6, percentile( times, 0.99 ) / 1e6 ));
+        return results;
+    }
+
+
+    /**
+     *  Runs all queries as intersection queries, and prints the median
+     *  and the 99th percentile of the latencies.
+     */
+    void measureIntersection() {
+        for ( Query query : queries )
+            searcher.search( query, QueryType.INTERSECTION_QUERY, RankingType.TF_IDF, NormalizationType.NUMBER_OF_WORDS );
+        long[] times = new long[queries.size()];
+        for ( int q=0; q<queries.size(); q++ ) {
+            long start = System.nanoTime();
+            searcher.search( queries.get( q ), QueryType.INTERSECTION_QUERY, RankingType.TF_IDF, NormalizationType.NUMBER_OF_WORDS );
+            times[q] = System.nanoTime() - start;
+        }
+        Arrays.sort( times );
+        System.out.println( String.format( "%-26s p50 %8.3f ms   p99 %8.3f ms",
+                                           "intersection", percentile( times, 0.5 ) / 1e6, percentile( times, 0.99 ) / 1e6 ));
+    }
+
+
+    /**
+     *  Replays the queries from @code{threads} threads at once, asking for
+     *  the top k results, and prints the number of queries per second and
+     *  the number of results that differ from the expected ones.
+     */
+    void measureThroughput( int threads, String[] expected ) throws InterruptedException {
+        int total = queries.size() * replays;
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger differing = new AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        for ( int t=0; t<threads; t++ ) {
+            workers[t] = new Thread( () -> {
+                for ( int i=next.getAndIncrement(); i<total; i=next.getAndIncrement() ) {
+                    int q = i % queries.size();
+                    PostingsList result = searcher.search( queries.get( q ), QueryType.RANKED_QUERY, RankingType.TF_IDF, NormalizationType.NUMBER_OF_WORDS, k );
+                    if ( !topK( result, k ).equals( expected[q] ))
+                        differing.incrementAndGet();
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for ( Thread worker : workers )
+            worker.start();
+        for ( Thread worker : workers )
+            worker.join();
+        double seconds = ( System.nanoTime() - start ) / 1e9;
+        System.out.println( String.format( "%3d threads %12.0f queries/s   %d differing",
+                                           threads, total / seconds, differing.get() ));
+    }
+
+
+    /** The docIDs and scores of the first k results. */
+    static String topK( PostingsList result, int k ) {
+        StringBuilder sb = new StringBuilder();
+        for ( int i=0; i<result.size() && i<k; i++ )
+            sb.append( result.get( i ).docID ).append( ':' ).append( result.get( i ).score ).append( ' ' );
+        return sb.toString();
+    }
+
+
+    /** Prints the number of queries whose results differ from the expected ones. */
+    static void compare( String[] results, String[] expected ) {
+        int differing = 0;
+        for ( int q=0; q<results.length; q++ ) {
+            if ( !results[q].equals( expected[q] ))
+                differing++;
+        }
+        System.out.println( "   " + differing + " differing" );
+    }
+
+
+    /** Returns the p-quantile of the sorted values. */
+    static long percentile( long[] sorted, double p ) {
+        return sorted[Math.min( sorted.length - 1, (int)Math.ceil( p * sorted.length ) - 1 )];
+    }
+
+
+    void run() throws IOException, InterruptedException {
+        Indexer indexer = new Indexer( index, null, patternsFile );
+        indexer.processFiles( new File( dirName ), true );
+        index.cleanup();
+        searcher = new Searcher( index, null );
+        if ( queryLog != null )
+            readQueries();
+        else
+            makeQueries();
+        System.out.println( index.terms().size() + " terms, " + queries.size() + " queries" );
+        String[] expected = measure( "full sort", EvaluationType.TERM_AT_A_TIME, Integer.MAX_VALUE );
+        System.out.println();
+        for ( EvaluationType e : EvaluationType.values() ) {
+            if ( evaluation == null || evaluation == e )
+                compare( measure( "top-" + k + " " + e.name().toLowerCase(), e, k ), expected );
+        }
+        measureIntersection();
+        if ( maxThreads > 0 ) {
+            searcher.evaluation = evaluation == null ? EvaluationType.TERM_AT_A_TIME : evaluation;
+            System.out.println( "throughput, " + searcher.evaluation.name().toLowerCase() + ":" );
+            for ( int threads=1; threads<maxThreads; threads*=2 )
+                measureThroughput( threads, expected );
+            measureThroughput( maxThreads, expected );
+        }
+        if ( memoryBudget > 0 )
+            checkPersistent( expected );
+    }
+
+
+    /**
+     *  Indexes the directory into a persistent index built from sorted
+     *  runs under the memory budget, so that the block upper bounds are
+     *  read from disk, and runs the top-k queries on it.
+     */
+    void checkPersistent( String[] expected ) {
+        new File( outDir ).mkdirs();
+        PersistentHashedIndex persistent = new PersistentHashedIndex( outDir, memoryBudget );
+        Indexer indexer = new Indexer( persistent, null, patternsFile );
+        indexer.processFiles( new File( dirName ), true );
+        persistent.cleanup();
+        searcher = new Searcher( persistent, null );
+        System.out.println( "persistent index, " + memoryBudget + " byte budget:" );
+        for ( EvaluationType e : EvaluationType.values() ) {
+            if ( evaluation == null || evaluation == e )
+                compare( measure( "top-" + k + " " + e.name().toLowerCase(), e, k ), expected );
+        }
+    }
+
+
+    /** Prints usage information. */
+    static void printHelpMessage() {
+        System.err.println( "The following parameters are available: " );
+        System.err.println( "  -d <dirname> : directory to be indexed (mandatory)" );
+        System.err.println( "  -p <filename> : name of the file containing regular expressions for non-standard words (optional)" );
+        System.err.println( "  -f <filename> : query log, one query per line (optional)" );
+        System.err.println( "  -e <type> : evaluation type: term_at_a_time, wand or block_max_wand (default all)" );
+        System.err.println( "  -q <number> : number of queries when there is no query log (default 200)" );
+        System.err.println( "  -t <number> : maximum number of terms per query (default 3)" );
+        System.err.println( "  -k <number> : number of results to rank (default " + SearchGUI.MAX_RESULTS + ")" );
+        System.err.println( "  -c <number> : also measure throughput with 1, 2, 4, ... up to this many threads (optional)" );
+        System.err.println( "  -mb <bytes> : also check a persistent index built under this memory budget (optional)" );
+        System.err.println( "  -o <dirname> : directory for the persistent index (default bench_index/query)" );
+    }
+
+
+    public static void main( String[] args ) throws IOException, InterruptedException {
+        QueryBenchmark b = new QueryBenchmark();
+        int i=0;
+        while ( i<args.length ) {
+            if ( "-d".equals( args[i] ) && i+1<args.length ) {
+                b.dirName = args[i+1];
+                i += 2;
+            } else if ( "-p".equals( args[i] ) && i+1<args.length ) {
+                b.patternsFile = args[i+1];
+                i += 2;
+            } else if ( "-f".equals( args[i] ) && i+1<args.length ) {
+                b.queryLog = args[i+1];
+                i += 2;
+            } else if ( "-e".equals( args[i] ) && i+1<args.length ) {
+                b.evaluation = EvaluationType.valueOf( args[i+1].toUpperCase() );
+                i += 2;
+            } else if ( "-q".equals( args[i] ) && i+1<args.length ) {
+                b.numQueries = Integer.parseInt( args[i+1] );
+                i += 2;
+            } else if ( "-t".equals( args[i] ) && i+1<args.length ) {
+                b.maxTerms = Integer.parseInt( args[i+1] );
+                i += 2;
+            } else if ( "-k".equals( args[i] ) && i+1<args.length ) {
+                b.k = Integer.parseInt( args[i+1] );
+                i += 2;
+            } else if ( "-c".equals( args[i] ) && i+1<args.length ) {
+                b.maxThreads = Integer.parseInt( args[i+1] );
+                i += 2;
+            } else if ( "-mb".equals( args[i] ) && i+1<args.length ) {
+                b.memoryBudget = Long.parseLong( args[i+1] );
+                i += 2;
+            } else if ( "-o".equals( args[i] ) && i+1<args.length ) {
+                b.outDir = args[i+1];
+                i += 2;
+            } else {
+                System.err.println( "Unrecognized parameter: " + args[i] );
+                printHelpMessage();
+                return;
+            }
+        }
+        if ( b.dirName == null ) {
+            printHelpMessage();
+            return;
+        }
+        b.run();
+    }
+}
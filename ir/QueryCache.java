@@ -0,0 +1,186 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2017
+ */
+
+package ir;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ *   Caches the results of searches, with the least recently used
+ *   results evicted first when the estimated size of the cached
+ *   results exceeds a memory budget.
+ *
+ *   Results are only valid for the version of the index they were
+ *   computed from; when a lookup sees another version, the whole cache
+ *   is emptied. The cache keeps its own copies of the results and hands
+ *   out copies, so callers may rank them further (see sortTopK) without
+ *   affecting each other. Searches without results are not cached, as
+ *   they stop at the first query term that is not in the index. All
+ *   methods are synchronized, so the cache can be shared by searching
+ *   threads.
+ */
+public class QueryCache {
+
+    /** Estimated bytes of a cache entry besides its key and result. */
+    static final int OVERHEAD_BYTES = 96;
+
+    /** The memory budget in bytes. */
+    private final long budget;
+
+    /** The cached results, from least to most recently used. */
+    private final LinkedHashMap<String,Cached> cache = new LinkedHashMap<String,Cached>( 16, 0.75f, true );
+
+    /** Estimated bytes used by the cached results. */
+    private long used = 0;
+
+    /** The index version the cached results were computed from. */
+    private long version = -1;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    private static class Cached {
+        final PostingsList result;
+        final long bytes;
+
+        Cached( PostingsList result, long bytes ) {
+            this.result = result;
+            this.bytes = bytes;
+        }
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    public QueryCache( long budget ) {
+        this.budget = budget;
+    }
+
+
+    /**
+     *  Returns the cache key of a search: the query terms with their
+     *  weights, in query order, and everything else the result depends on.
+     */
+    public static String key( Query query, QueryType queryType, RankingType rankingType, NormalizationType normType,
+                              EvaluationType evaluation, int k ) {
+        StringBuilder sb = new StringBuilder();
+        sb.append( queryType.ordinal() ).append( ' ' ).append( rankingType.ordinal() ).append( ' ' )
+          .append( normType.ordinal() ).append( ' ' ).append( evaluation.ordinal() ).append( ' ' ).append( k );
+        for ( int i=0; i<query.size(); i++ ) {
+            Query.QueryTerm t = query.queryterm.get( i );
+            sb.append( ' ' ).append( t.term ).append( ':' ).append( t.weight );
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     *  Returns a copy of the cached result of the search with the given
+     *  key, or @code{null} if it is not cached for this version of the index.
+     */
+    public synchronized PostingsList get( String key, long indexVersion ) {
+        checkVersion( indexVersion );
+        Cached c = cache.get( key );
+        if ( c == null ) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return c.result.copy();
+    }
+
+
+    /**
+     *  Caches a copy of the result of a search on the given version of the
+     *  index, and evicts the least recently used results while over budget.
+     */
+    public synchronized void put( String key, PostingsList result, long indexVersion ) {
+        checkVersion( indexVersion );
+        if ( result == null )
+            return;
+        PostingsList copy = result.copy();
+        long bytes = OVERHEAD_BYTES + 2L * key.length() + copy.bytes();
+        if ( bytes > budget )
+            return;
+        Cached old = cache.put( key, new Cached( copy, bytes ));
+        if ( old != null )
+            used -= old.bytes;
+        used += bytes;
+        Iterator<Map.Entry<String,Cached>> it = cache.entrySet().iterator();
+        while ( used > budget && it.hasNext() ) {
+            used -= it.next().getValue().bytes;
+            it.remove();
+            evictions++;
+        }
+    }
+
+
+    /** Empties the cache if the index has changed since the results were cached. */
+    private void checkVersion( long indexVersion ) {
+        if ( indexVersion != version ) {
+            if ( !cache.isEmpty() )
+                invalidations++;
+            cache.clear();
+            used = 0;
+            version = indexVersion;
+        }
+    }
+
+
+    /** Empties the cache, e.g. when the static scores of the documents change. */
+    public synchronized void clear() {
+        if ( !cache.isEmpty() )
+            invalidations++;
+        cache.clear();
+        used = 0;
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    public synchronized long invalidations() {
+        return invalidations;
+    }
+
+    /** The fraction of lookups that were hits. */
+    public synchronized double hitRate() {
+        return hits + misses == 0 ? 0 : (double)hits / ( hits + misses );
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /** Estimated number of bytes used by the cached results. */
+    public synchronized long bytes() {
+        return used;
+    }
+
+    public synchronized String toString() {
+        return String.format( "%d results, %d bytes, %d hits, %d misses (hit rate %.3f), %d evictions, %d invalidations",
+                              cache.size(), used, hits, misses, hitRate(), evictions, invalidations );
+    }
+}
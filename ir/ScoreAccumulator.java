@@ -0,0 +1,119 @@
+/*  
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ * 
+ *   Johan Boye, 2017
+ */  
+
+package ir;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ *   Scores of the documents matching a ranked query, kept in arrays
+ *   indexed by docID, together with the list of documents that have
+ *   been given a score. An accumulator is reused from query to query,
+ *   so that scoring does not allocate anything once the arrays have
+ *   grown to the size of the collection. It is not thread-safe; every
+ *   searching thread has its own.
+ */
+public class ScoreAccumulator {
+
+    /** The score of every document, valid if its stamp is the current epoch. */
+    private double[] scores = new double[0];
+
+    /** The epoch in which each document was last given a score. */
+    private int[] stamps = new int[0];
+
+    /** The current query; documents with other stamps have no score. */
+    private int epoch = 1;
+
+    /** The documents that have a score, in the order they got it. */
+    private int[] touched = new int[16];
+
+    /** Number of documents in @code{touched}. */
+    private int size = 0;
+
+    /** The length of every document, copied from Index.docLengths. */
+    private int[] lengths = new int[0];
+
+    /** The index, and its version, whose document lengths are in @code{lengths}. */
+    private Index lengthsIndex = null;
+    private long lengthsVersion = -1;
+
+
+    /**
+     *  Forgets all scores, and makes room for docIDs up to the largest
+     *  one in Index.docLengths. The lengths are copied again whenever
+     *  the index or its version has changed.
+     */
+    public void clear( Index index ) {
+        long version = index.version();
+        if ( index != lengthsIndex || version != lengthsVersion ) {
+            copyLengths( Index.docLengths );
+            lengthsIndex = index;
+            lengthsVersion = version;
+        }
+        size = 0;
+        if ( ++epoch == Integer.MAX_VALUE ) {
+            Arrays.fill( stamps, 0 );
+            epoch = 1;
+        }
+    }
+
+
+    /** Adds @code{score} to the score of a document. */
+    public void add( int docID, double score ) {
+        if ( stamps[docID] != epoch ) {
+            stamps[docID] = epoch;
+            scores[docID] = score;
+            if ( size == touched.length )
+                touched = Arrays.copyOf( touched, size * 2 );
+            touched[size++] = docID;
+        } else {
+            scores[docID] += score;
+        }
+    }
+
+
+    /** Number of documents with a score. */
+    public int size() {
+        return size;
+    }
+
+
+    /** The ith document that was given a score. */
+    public int docID( int i ) {
+        return touched[i];
+    }
+
+
+    /** The score of a document. */
+    public double score( int docID ) {
+        return stamps[docID] == epoch ? scores[docID] : 0;
+    }
+
+
+    /** The length of a document, as in Index.docLengths. */
+    public int length( int docID ) {
+        return lengths[docID];
+    }
+
+
+    /** Copies the document lengths into an array, and grows the score arrays. */
+    private void copyLengths( HashMap<Integer,Integer> docLengths ) {
+        int maxDocID = -1;
+        for ( int docID : docLengths.keySet() )
+            maxDocID = Math.max( maxDocID, docID );
+        lengths = new int[maxDocID + 1];
+        for ( Map.Entry<Integer,Integer> e : docLengths.entrySet() )
+            lengths[e.getKey()] = e.getValue();
+        if ( scores.length < lengths.length ) {
+            scores = Arrays.copyOf( scores, lengths.length );
+            stamps = Arrays.copyOf( stamps, lengths.length );
+        }
+    }
+}
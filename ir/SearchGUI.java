@@ -32,6 +32,9 @@ public class SearchGUI extends JFrame {
     /**  The results of a search query. */
     private PostingsList results;
 
+    /**  The type of the query that gave @code{results}. */
+    private QueryType resultsType;
+
     /**  The query type (either intersection, phrase, or ranked). */
     QueryType queryType = QueryType.INTERSECTION_QUERY;
 
@@ -159,22 +162,30 @@ public class SearchGUI extends JFrame {
                 // Turn the search string into a Query
                 String queryString = queryWindow.getText().toLowerCase().trim();
                 query = new Query( queryString );
-                // Take relevance feedback from the user into account (assignment 3)
-                // Check which documents the user has marked as relevant.
-                if ( box != null ) {
-                    boolean[] relevant = new boolean[box.length];
-                    for ( int i=0; i<box.length; i++ ) {
-                        if ( box[i] != null )
-                            relevant[i] = box[i].isSelected();
+                // Searching takes the read lock since we don't want to search at
+                // the same time we're indexing new files (this might corrupt the
+                // index), but other searches may run.
+                long startTime = 0;
+                engine.indexLock.readLock().lock();
+                try {
+                    // Take relevance feedback from the user into account (assignment 3)
+                    // Check which documents the user has marked as relevant.
+                    if ( box != null ) {
+                        boolean[] relevant = new boolean[box.length];
+                        for ( int i=0; i<box.length; i++ ) {
+                            if ( box[i] != null )
+                                relevant[i] = box[i].isSelected();
+                        }
+                        query.relevanceFeedback( results, relevant, engine );
                     }
-                    query.relevanceFeedback( results, relevant, engine );
-                }
-                // Search and print results. Access to the index is synchronized since
-                // we don't want to search at the same time we're indexing new files
-                // (this might corrupt the index).
-                long startTime = System.currentTimeMillis();
-                synchronized ( engine.indexLock ) {
-                    results = engine.searcher.search( query, queryType, rankingType, normType );
+                    // Search and print results. Term-at-a-time evaluation
+                    // finds every matching document, so that more than the
+                    // first MAX_RESULTS can be displayed.
+                    startTime = System.currentTimeMillis();
+                    results = engine.searcher.search( query, queryType, rankingType, normType, MAX_RESULTS, EvaluationType.TERM_AT_A_TIME );
+                    resultsType = queryType;
+                } finally {
+                    engine.indexLock.readLock().unlock();
                 }
                 long elapsedTime = System.currentTimeMillis() - startTime;
                 // Display the first few results + a button to see all results.
@@ -300,6 +311,10 @@ public class SearchGUI extends JFrame {
      *  @param elapsedTime Shows how long time it took to compute the results.
      */
     void displayResults( int maxResultsToDisplay, double elapsedTime ) {
+        // Ranked results are only sorted as far as they are displayed.
+        if ( resultsType == QueryType.RANKED_QUERY ) {
+            results.sortTopK( maxResultsToDisplay );
+        }
         displayInfoText( String.format( "Found %d matching document(s) in %.3f seconds", results.size(), elapsedTime ));
         box = new JCheckBox[maxResultsToDisplay];
         int i;
@@ -0,0 +1,246 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2017
+ */
+
+package ir;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ *   Answers queries over HTTP, for running the engine without the GUI.
+ *
+ *   GET /search?q=...&type=...&ranking=...&norm=...&eval=...&limit=...
+ *   searches with the engine's Searcher and returns the results as JSON.
+ *   The type is intersection, phrase or ranked (default), the ranking
+ *   tf_idf (default), pagerank or combination, the normalization
+ *   number_of_words (default) or euclidean, and the evaluation of ranked
+ *   tf-idf queries term_at_a_time, wand or block_max_wand (default that
+ *   of the engine); the full enum names are accepted as well. At most
+ *   @code{limit} results are returned (default 10), but "total" counts
+ *   all of them, and "took_ms" is the time spent searching. The same
+ *   time is sent in a Server-Timing header.
+ *
+ *   The index is read-locked only while searching and building the
+ *   response, not while the response is sent, so a slow client cannot
+ *   hold up indexing.
+ *
+ *   GET /stats returns the counters of the query cache and of the
+ *   postings cache of a persistent index, where there are such caches.
+ *
+ *   Requests are handled by a fixed number of worker threads. When all
+ *   of them are busy and the queue is full, the server's own thread runs
+ *   the request, which stops it from accepting more until one is done.
+ */
+public class SearchServer {
+
+    /** The largest result limit a request may ask for. */
+    public static final int MAX_LIMIT = 1000;
+
+    /** The engine whose index and searcher are used. */
+    final Engine engine;
+
+    private final HttpServer server;
+
+
+    /* --------------------------------------------- */
+
+
+    public SearchServer( Engine engine, int port, int threads ) throws IOException {
+        this.engine = engine;
+        server = HttpServer.create( new InetSocketAddress( port ), 0 );
+        server.createContext( "/search", this::handleSearch );
+        server.createContext( "/stats", this::handleStats );
+        server.setExecutor( new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS,
+                                                    new ArrayBlockingQueue<Runnable>( 16 * threads ),
+                                                    new ThreadPoolExecutor.CallerRunsPolicy() ));
+    }
+
+
+    public void start() {
+        server.start();
+        System.err.println( "Listening on port " + server.getAddress().getPort() );
+    }
+
+
+    /** Stops accepting requests, and waits for the current ones to finish. */
+    public void stop() {
+        server.stop( 1 );
+        ((ThreadPoolExecutor)server.getExecutor()).shutdown();
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    private void handleSearch( HttpExchange exchange ) throws IOException {
+        try {
+            if ( !"GET".equals( exchange.getRequestMethod() )) {
+                send( exchange, 405, "{\"error\":\"only GET is supported\"}", -1 );
+                return;
+            }
+            HashMap<String,String> params = parseQuery( exchange.getRequestURI() );
+            String q = params.get( "q" );
+            if ( q == null || q.trim().isEmpty() ) {
+                send( exchange, 400, "{\"error\":\"missing parameter q\"}", -1 );
+                return;
+            }
+            QueryType queryType = parse( QueryType.class, params.get( "type" ), QueryType.RANKED_QUERY, "_QUERY" );
+            RankingType rankingType = parse( RankingType.class, params.get( "ranking" ), RankingType.TF_IDF, "" );
+            NormalizationType normType = parse( NormalizationType.class, params.get( "norm" ), NormalizationType.NUMBER_OF_WORDS, "" );
+            EvaluationType evaluation = parse( EvaluationType.class, params.get( "eval" ), engine.evaluation, "" );
+            int limit = params.containsKey( "limit" ) ? Integer.parseInt( params.get( "limit" )) : SearchGUI.MAX_RESULTS;
+            if ( limit < 0 || limit > MAX_LIMIT )
+                throw new IllegalArgumentException( "limit must be between 0 and " + MAX_LIMIT );
+
+            Query query = new Query( q.toLowerCase().trim() );
+            StringBuilder json = new StringBuilder();
+            long start = System.nanoTime();
+            long took;
+            engine.indexLock.readLock().lock();
+            try {
+                PostingsList results = engine.searcher.search( query, queryType, rankingType, normType, Math.max( limit, 1 ), evaluation );
+                took = System.nanoTime() - start;
+                json.append( "{\"query\":" ).append( quote( q ));
+                json.append( ",\"type\":\"" ).append( queryType ).append( '"' );
+                json.append( ",\"ranking\":\"" ).append( rankingType ).append( '"' );
+                json.append( ",\"normalization\":\"" ).append( normType ).append( '"' );
+                json.append( ",\"evaluation\":\"" ).append( evaluation ).append( '"' );
+                json.append( ",\"total\":" ).append( results == null ? 0 : results.size() );
+                json.append( ",\"took_ms\":" ).append( String.format( Locale.ROOT, "%.3f", took / 1e6 ));
+                json.append( ",\"results\":[" );
+                for ( int i=0; results != null && i<results.size() && i<limit; i++ ) {
+                    PostingsEntry e = results.get( i );
+                    if ( i > 0 )
+                        json.append( ',' );
+                    json.append( "{\"docID\":" ).append( e.docID );
+                    json.append( ",\"name\":" ).append( quote( Index.docNames.get( e.docID )));
+                    if ( queryType == QueryType.RANKED_QUERY )
+                        json.append( ",\"score\":" ).append( e.score );
+                    json.append( '}' );
+                }
+                json.append( "]}" );
+            } finally {
+                engine.indexLock.readLock().unlock();
+            }
+            send( exchange, 200, json.toString(), took );
+        } catch ( IllegalArgumentException e ) {
+            send( exchange, 400, "{\"error\":" + quote( e.getMessage() ) + "}", -1 );
+        } catch ( RuntimeException e ) {
+            e.printStackTrace();
+            send( exchange, 500, "{\"error\":" + quote( e.toString() ) + "}", -1 );
+        } finally {
+            exchange.close();
+        }
+    }
+
+
+    private void handleStats( HttpExchange exchange ) throws IOException {
+        try {
+            StringBuilder json = new StringBuilder( "{\"cache\":" );
+            QueryCache cache = engine.searcher.getCache();
+            if ( cache == null ) {
+                json.append( "null" );
+            } else {
+                synchronized ( cache ) {
+                    json.append( String.format( Locale.ROOT, "{\"results\":%d,\"bytes\":%d,\"hits\":%d,\"misses\":%d,\"hit_rate\":%.4f,\"evictions\":%d,\"invalidations\":%d}",
+                                                cache.size(), cache.bytes(), cache.hits(), cache.misses(), cache.hitRate(),
+                                                cache.evictions(), cache.invalidations() ));
+                }
+            }
+            json.append( ",\"postings_cache\":" );
+            PostingsCache postings = engine.index instanceof PersistentHashedIndex ? ((PersistentHashedIndex)engine.index).cache : null;
+            if ( postings == null ) {
+                json.append( "null" );
+            } else {
+                synchronized ( postings ) {
+                    json.append( String.format( Locale.ROOT, "{\"lists\":%d,\"bytes\":%d,\"hits\":%d,\"misses\":%d,\"hit_rate\":%.4f,\"evictions\":%d,\"rejections\":%d}",
+                                                postings.size(), postings.bytes(), postings.hits(), postings.misses(), postings.hitRate(),
+                                                postings.evictions(), postings.rejections() ));
+                }
+            }
+            send( exchange, 200, json.append( '}' ).toString(), -1 );
+        } finally {
+            exchange.close();
+        }
+    }
+
+
+    private static void send( HttpExchange exchange, int status, String json, long nanos ) throws IOException {
+        byte[] body = json.getBytes( StandardCharsets.UTF_8 );
+        exchange.getResponseHeaders().set( "Content-Type", "application/json; charset=utf-8" );
+        if ( nanos >= 0 )
+            exchange.getResponseHeaders().set( "Server-Timing", String.format( Locale.ROOT, "search;dur=%.3f", nanos / 1e6 ));
+        exchange.sendResponseHeaders( status, body.length );
+        try ( OutputStream out = exchange.getResponseBody() ) {
+            out.write( body );
+        }
+    }
+
+
+    /** Decodes the parameters of the query part of the URI. */
+    static HashMap<String,String> parseQuery( URI uri ) {
+        HashMap<String,String> params = new HashMap<String,String>();
+        String raw = uri.getRawQuery();
+        if ( raw == null )
+            return params;
+        for ( String pair : raw.split( "&" )) {
+            int eq = pair.indexOf( '=' );
+            String key = eq < 0 ? pair : pair.substring( 0, eq );
+            String value = eq < 0 ? "" : pair.substring( eq + 1 );
+            params.put( URLDecoder.decode( key, StandardCharsets.UTF_8 ), URLDecoder.decode( value, StandardCharsets.UTF_8 ));
+        }
+        return params;
+    }
+
+
+    /**
+     *  Returns the enum constant named by @code{value}, ignoring case and
+     *  with or without @code{suffix}, or @code{def} if there is no value.
+     */
+    static <E extends Enum<E>> E parse( Class<E> type, String value, E def, String suffix ) {
+        if ( value == null || value.isEmpty() )
+            return def;
+        String name = value.toUpperCase();
+        for ( E e : type.getEnumConstants() ) {
+            if ( e.name().equals( name ) || e.name().equals( name + suffix ))
+                return e;
+        }
+        throw new IllegalArgumentException( "unknown " + type.getSimpleName() + ": " + value );
+    }
+
+
+    /** Returns the string as a JSON string literal. */
+    static String quote( String s ) {
+        if ( s == null )
+            return "null";
+        StringBuilder sb = new StringBuilder( s.length() + 2 );
+        sb.append( '"' );
+        for ( int i=0; i<s.length(); i++ ) {
+            char c = s.charAt( i );
+            if ( c == '"' || c == '\\' ) {
+                sb.append( '\\' ).append( c );
+            } else if ( c < 0x20 ) {
+                sb.append( String.format( "\\u%04x", (int)c ));
+            } else {
+                sb.append( c );
+            }
+        }
+        return sb.append( '"' ).toString();
+    }
+}
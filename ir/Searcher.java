@@ -13,6 +13,12 @@ import java.io.*;
 
 /**
  *  Searches an index for results of a query.
+ *
+ *  Any number of threads can search at the same time, as long as the
+ *  index is not being changed (see Engine.indexLock). Searching never
+ *  writes to the index or to its postings: the scores of ranked queries
+ *  go into new entries of a new list, and the score accumulator is
+ *  per thread.
  */
 public class Searcher {
 
@@ -22,14 +28,29 @@ public class Searcher {
     /** The k-gram index to be searched by this Searcher */
     KGramIndex kgIndex;
 
-    // private PostingsList pageRankPosting = new PostingsList();
-    private HashMap<String,Double> pageRankHash = new HashMap<String,Double>();
+    /** The PageRank of every document, by docID. */
+    private PageRankScores pageRank = PageRankScores.empty();
+
+    /** Results of earlier searches, or @code{null} if they are not cached. */
+    private QueryCache cache = null;
+
+    /** The score accumulator of each searching thread. */
+    private final ThreadLocal<ScoreAccumulator> accumulator = ThreadLocal.withInitial( ScoreAccumulator::new );
+
+    /** How ranked tf-idf queries asking for the top k results are evaluated, unless given. */
+    EvaluationType evaluation = EvaluationType.TERM_AT_A_TIME;
+
+    /** Whether unranked queries print the terms sharing their k-grams to standard error. */
+    boolean printKGramMatches = true;
+
+    /** Document-at-a-time evaluation with dynamic pruning. */
+    private final WandScorer wand;
     
     /** Constructor */
     public Searcher( Index index, KGramIndex kgIndex ) {
         this.index = index;
         this.kgIndex = kgIndex;
-        initilizeRankPage();
+        this.wand = new WandScorer( index );
     }
 
     /**
@@ -37,13 +58,79 @@ public class Searcher {
      *  @return A postings list representing the result of the query.
      */
     public PostingsList search( Query query, QueryType queryType, RankingType rankingType, NormalizationType normType ) { 
+        return search( query, queryType, rankingType, normType, Integer.MAX_VALUE );
+    }
+
+
+    /**
+     *  Searches the index for postings matching the query. For ranked
+     *  queries only the @code{k} best results are put in order at the
+     *  start of the list; call sortTopK() on the result to rank more.
+     *  An unranked query of one term returns the postings list of the
+     *  index itself, which must not be changed.
+     *  @return A postings list representing the result of the query.
+     */
+    public PostingsList search( Query query, QueryType queryType, RankingType rankingType, NormalizationType normType, int k ) { 
+        return search( query, queryType, rankingType, normType, k, evaluation );
+    }
+
+
+    /**
+     *  Searches the index for postings matching the query, evaluating
+     *  ranked tf-idf queries as given by @code{evaluation}.
+     *  @return A postings list representing the result of the query.
+     */
+    public PostingsList search( Query query, QueryType queryType, RankingType rankingType, NormalizationType normType, int k, EvaluationType evaluation ) { 
+        QueryCache c = cache;
+        if ( c == null )
+            return evaluate( query, queryType, rankingType, normType, k, evaluation );
+        String key = QueryCache.key( query, queryType, rankingType, normType, evaluation, k );
+        PostingsList result = c.get( key, index.version() );
+        if ( result == null ) {
+            result = evaluate( query, queryType, rankingType, normType, k, evaluation );
+            c.put( key, result, index.version() );
+        }
+        return result;
+    }
+
+
+    /**
+     *  Caches the results of searches in @code{cache}, or stops caching
+     *  them if it is @code{null}.
+     */
+    public void setCache( QueryCache cache ) {
+        this.cache = cache;
+    }
+
+
+    public QueryCache getCache() {
+        return cache;
+    }
+
+
+    /**
+     *  Sets the PageRank of the documents. Cached results are dropped,
+     *  as those of PageRank and combined ranking depend on it.
+     */
+    public void setPageRank( PageRankScores pageRank ) {
+        this.pageRank = pageRank;
+        QueryCache c = cache;
+        if ( c != null )
+            c.clear();
+    }
+
+
+    /**
+     *  Evaluates a query on the index, without the cache.
+     */
+    private PostingsList evaluate( Query query, QueryType queryType, RankingType rankingType, NormalizationType normType, int k, EvaluationType evaluation ) {
         PostingsList result = new PostingsList();
         if(query.queryterm.size() == 0)
             return null;
 
 
         // Kgram
-        if(queryType != QueryType.RANKED_QUERY){
+        if(printKGramMatches && queryType != QueryType.RANKED_QUERY && kgIndex != null){
                 List<KGramPostingsEntry> kGramPostings = null;
         for(int i = 0; i < query.size(); i++){
             String kgram = query.queryterm.get(i).term;
@@ -74,19 +161,26 @@ public class Searcher {
             result = index.getPostings(query.queryterm.get(0).term);
         else{   
             if(queryType == QueryType.PHRASE_QUERY){
-                result = positionalIntersect(index.getPostings(query.queryterm.get(0).term),
-                index.getPostings(query.queryterm.get(1).term ), 1);
+                PostingsList[] lists = postingsLists(query);
+                if(lists == null)
+                    return null;
+                result = positionalIntersect(lists[0], lists[1], 1);
 
                 for(int i = 2; i < query.size(); i++){
-                    result = positionalIntersect(result, index.getPostings(query.queryterm.get(i).term), 1);
+                    result = positionalIntersect(result, lists[i], 1);
                 }
             }
             else if (queryType == QueryType.INTERSECTION_QUERY){
-                result =  intersect(index.getPostings(query.queryterm.get(0).term ),
-                index.getPostings(query.queryterm.get(1).term ));
-
-                for(int i = 2; i < query.size(); i++){
-                    result = intersect(result, index.getPostings(query.queryterm.get(i).term));
+                PostingsList[] lists = postingsLists(query);
+                if(lists == null)
+                    return null;
+                // Start with the rarest terms, so that the intermediate
+                // results are short and the long lists are mostly skipped.
+                Arrays.sort(lists, Comparator.comparingInt(PostingsList::size));
+                result = intersect(lists[0], lists[1]);
+
+                for(int i = 2; i < lists.length; i++){
+                    result = intersect(result, lists[i]);
                 }
 
 
@@ -94,24 +188,30 @@ public class Searcher {
             else if(queryType == QueryType.RANKED_QUERY){
                 if(rankingType == RankingType.TF_IDF){
                     // long startTime = System.currentTimeMillis();
-                    result = fastCosineScore(query);
+                    result = null;
+                    if ( evaluation != EvaluationType.TERM_AT_A_TIME && k < Integer.MAX_VALUE ) {
+                        result = wand.search( query, k, evaluation == EvaluationType.BLOCK_MAX_WAND, accumulator.get() );
+                    }
+                    if ( result == null ) {
+                        result = fastCosineScore(query);
+                    }
                     // long endTime = System.currentTimeMillis();
                     // long executionTime = endTime - startTime;
                     // System.out.println("score: " + executionTime + " milliseconds");
                     if(result == null)
                         return null;
-                    result.sortScore();
+                    result.sortTopK( k );
                 }
                 else if(rankingType == RankingType.PAGERANK){
                     result = combinedScore(unionSearch(query), "page", 1);
-                    result.sortScore();
+                    result.sortTopK( k );
                 }else{
                     result = fastCosineScore(query);
                     if(result == null)
                         return null;
                     
                     result = combinedScore(result, "combo", 5);
-                    result.sortScore();
+                    result.sortTopK( k );
                 }                
                 
             }
@@ -121,33 +221,77 @@ public class Searcher {
 
 
 
+    /**
+     *  Returns the postings lists of the query terms in query order,
+     *  or null if some term is not in the index.
+     */
+    private PostingsList[] postingsLists(Query query){
+        PostingsList[] lists = new PostingsList[query.size()];
+        for(int i = 0; i < query.size(); i++){
+            lists[i] = index.getPostings(query.queryterm.get(i).term);
+            if(lists[i] == null)
+                return null;
+        }
+        return lists;
+    }
+
+
+    /**
+     *  Returns the documents in both lists. Every document of the shorter
+     *  list is looked up in the longer one by galloping search, so the
+     *  cost is O(s log(l/s)) rather than O(s + l) for lists of lengths
+     *  s and l.
+     */
     public PostingsList intersect(PostingsList p1List, PostingsList p2List){
         PostingsList answer =  new PostingsList();
+        if(p1List.size() > p2List.size()){
+            PostingsList tmp = p1List;
+            p1List = p2List;
+            p2List = tmp;
+        }
 
-        int counterP1 = 0;
         int counterP2 = 0;
-
-        PostingsEntry p1Entry = p1List.get(counterP1);
-        PostingsEntry p2Entry = p2List.get(counterP2);
-
-        while (p1Entry != null && p2Entry != null){
-            if (p1Entry.docID == p2Entry.docID){
-                answer.add(p1Entry.docID);
-                p1Entry = p1List.get(++counterP1);
-                p2Entry = p2List.get(++counterP2);
-            }
-            else if(p1Entry.docID < p2Entry.docID)
-                    p1Entry = p1List.get(++counterP1);
-                else
-                    p2Entry = p2List.get(++counterP2);
-
-               
+        for(int counterP1 = 0; counterP1 < p1List.size() && counterP2 < p2List.size(); counterP1++){
+            int docID = p1List.get(counterP1).docID;
+            counterP2 = p2List.advance(counterP2, docID);
+            PostingsEntry p2Entry = p2List.get(counterP2);
+            if(p2Entry != null && p2Entry.docID == docID)
+                answer.add(new PostingsEntry(docID, 0));
         }
         return answer;
         
     }
 
+    /**
+     *  Returns the documents in which a position of the second list is
+     *  exactly @code{k} after a position of the first list (k = 1 for
+     *  adjacent words in a phrase). The result holds the matching
+     *  positions of the second list, so that longer phrases can be
+     *  matched by chaining calls.
+     */
     public PostingsList positionalIntersect(PostingsList p1List, PostingsList p2List, int k){
+        return positionalMerge(p1List, p2List, k, k);
+    }
+
+
+    /**
+     *  Returns the documents in which a position of the second list is
+     *  at most @code{window} positions before or after a position of the
+     *  first list, with the matching positions of the second list.
+     */
+    public PostingsList proximityIntersect(PostingsList p1List, PostingsList p2List, int window){
+        return positionalMerge(p1List, p2List, -window, window);
+    }
+
+
+    /**
+     *  Returns the documents in both lists where some position p2 of the
+     *  second list and p1 of the first list have minDist <= p2 - p1 <=
+     *  maxDist, with the positions p2 for which this holds. Documents are
+     *  matched by galloping search, and the positions of a document by a
+     *  linear two-pointer merge.
+     */
+    private PostingsList positionalMerge(PostingsList p1List, PostingsList p2List, int minDist, int maxDist){
         PostingsList answer =  new PostingsList();
 
         int p1 = 0;
@@ -158,39 +302,31 @@ public class Searcher {
     
         while (p1Entry != null && p2Entry != null){
              if (p1Entry.docID == p2Entry.docID){
-                LinkedList<Integer> l = new LinkedList<Integer>();
-
-                LinkedList<Integer> posListP1 = p1Entry.positions;
-                LinkedList<Integer> posListP2 = p2Entry.positions;
-
-                int counterPP1 = 0;
-                while ( counterPP1 != posListP1.size()){
-                    int counterPP2 = 0;
-                    while ( counterPP2 != posListP2.size()){
-                        if(posListP2.get(counterPP2) - posListP1.get(counterPP1) == k)
-                            l.add(posListP2.get(counterPP2));
-                        else if (posListP2.get(counterPP2) > posListP1.get(counterPP1))
-                            break;
-
-                        counterPP2++;
-                    }
-                    // while(l.size() !=0 && Math.abs(l.get(0) - posListP1.get(counterPP1)) > k)
-                    //     l.remove(0);
-                    for(int i =0; i < l.size(); i++){
-                        answer.add(p1Entry.docID, l.get(i));
-                    }
-                    l.clear();
-                    counterPP1++;
+                // For every position of the second list, move to the first
+                // position of the first list that is not too far before it.
+                int i = 0;
+                for(int j = 0; j < p2Entry.size(); j++){
+                    int pos = p2Entry.position(j);
+                    while(i < p1Entry.size() && p1Entry.position(i) < pos - maxDist)
+                        i++;
+                    if(i == p1Entry.size())
+                        break;
+                    if(p1Entry.position(i) <= pos - minDist)
+                        answer.add(p1Entry.docID, pos);
                 }
 
                 p1Entry = p1List.get(++p1);
                 p2Entry = p2List.get(++p2);
 
             }
-            else if(p1Entry.docID < p2Entry.docID)
-                    p1Entry = p1List.get(++p1);
-                else
-                    p2Entry = p2List.get(++p2);
+            else if(p1Entry.docID < p2Entry.docID){
+                    p1 = p1List.advance(p1, p2Entry.docID);
+                    p1Entry = p1List.get(p1);
+                }
+                else{
+                    p2 = p2List.advance(p2, p1Entry.docID);
+                    p2Entry = p2List.get(p2);
+                }
 
         }
         
@@ -198,117 +334,58 @@ public class Searcher {
 
     }
 
+    /**
+     *  Scores the documents containing any of the query terms, one term
+     *  at a time, by the sum over the terms of weight * tf * idf / length.
+     *  The scores are accumulated in arrays, and the result holds new
+     *  entries, so the entries of the index are never written to.
+     *  @return The matching documents with their scores, in the order
+     *      they were first found.
+     */
     public PostingsList fastCosineScore(Query query){
-        PostingsList answer =  new PostingsList(); 
-
-        int querySize = query.size(); 
-        // int answerSize = answer.size(); 
-        int indexDocLengthsSize = index.docLengths.size(); 
-        HashMap<Integer,Boolean> con = new HashMap<Integer,Boolean>();
-        HashMap<Integer,Integer> checkout = new HashMap<Integer,Integer>();
-
-        int counter = 0;
-        for(int i = 0; i < querySize; i++){
-            int answerSize = answer.size();
-            PostingsList temp = index.getPostings(query.queryterm.get(i).term);
-            int tempSize = temp.size();
-            double queryWeight = query.queryterm.get(i).weight;
-            // double check = 0;
-            if(temp != null){    
-                for(int j = 0; j < tempSize; j++){
-                    PostingsEntry doc = temp.get(j);
-                    double idf = Math.log((double) indexDocLengthsSize / (double) tempSize);
-                    double score = (queryWeight * idf * doc.size())/index.docLengths.get(doc.docID);
-                    doc.setScore(score);
-                    
-                    // if(index.docNames.get(doc.docID).substring(10, (index.docNames.get(doc.docID)).length()).equals("EmilyMaas.f")){
-                    //     check+=score;
-                    //     System.out.println(check);
-                    // }
-
-                    if(con.containsKey(doc.docID)){
-                        int k = checkout.get(doc.docID);
-                        answer.get(k).setScore(answer.get(k).score + score);
-                        }
-                        else{
-                            answer.add(doc);
-                            con.put(doc.docID, true);
-                            checkout.put(doc.docID, counter);
-                            counter++;
-                        }
-
-                    //   boolean c = true;
-                    // for(int k = 0; k < answerSize; k++){
-                    //     if(doc.docID == answer.get(k).docID){
-                    //         c = false;
-                    //         answer.get(k).setScore(answer.get(k).score + score);
-                    //     }
-                    // }
-                    // if(c)
-                    //     answer.add(doc);
-                    
-                    }
+        ScoreAccumulator acc = accumulator.get();
+        acc.clear( index );
+        int n = Index.docLengths.size();
+        for ( int i = 0; i < query.size(); i++ ) {
+            PostingsList postings = index.getPostings( query.queryterm.get( i ).term );
+            if ( postings == null )
+                continue;
+            int df = postings.size();
+            double weight = query.queryterm.get( i ).weight * Math.log( (double)n / (double)df );
+            for ( int j = 0; j < df; j++ ) {
+                PostingsEntry doc = postings.get( j );
+                acc.add( doc.docID, ( weight * doc.size() ) / acc.length( doc.docID ));
             }
-        } 
+        }
+        PostingsList answer = new PostingsList();
+        for ( int i = 0; i < acc.size(); i++ ) {
+            int docID = acc.docID( i );
+            answer.add( new PostingsEntry( docID, acc.score( docID )));
+        }
         return answer;
     }
 
-    private void initilizeRankPage(){
-        try {
-	    System.err.println( "Reading pagerank... " );
-	    BufferedReader in = new BufferedReader( new FileReader( "pagerank/pageranksTitle.txt"));
-	    String line;
-	    while ((line = in.readLine()) != null){
-            int index = line.indexOf( ":" );
-		    String title = line.substring( 0, index );
-		    double score = Double.parseDouble(line.substring(index + 1));
-            // PostingsEntry entry = new PostingsEntry();
-            
-            // entry.setScore(score);
-            // entry.add(Integer.parseInt(docID));
-            pageRankHash.put(title, score);
-            }
-        }catch ( IOException e ) {
-	        System.err.println( "Error reading file ");
-	    }
-    }
-
-
+    /**
+     *  Returns the documents containing any of the query terms, sorted
+     *  on docID, by a k-way merge of the postings lists.
+     */
     private PostingsList unionSearch(Query query){
-     PostingsList answer =  new PostingsList(); 
-        for(int i = 0; i < query.size(); i++){
-            int answerSize = answer.size();
-            PostingsList temp = index.getPostings(query.queryterm.get(i).term);
-            if(temp != null)
-                for(int j = 0; j < temp.size(); j++){
-                    PostingsEntry doc = temp.get(j);
-                    boolean con = true;
-                    for(int k = 0; k < answerSize; k++){
-                        if(doc.docID == answer.get(k).docID){
-                            con = false;
-                            break;
-                        }
-                    }
-                    if(con)
-                        answer.add(doc);
-                    }
-        } 
-        return answer;
+        List<PostingsList> lists = new ArrayList<PostingsList>(query.size());
+        for(int i = 0; i < query.size(); i++)
+            lists.add(index.getPostings(query.queryterm.get(i).term));
+        return PostingsUnion.union(lists);
     }
 
     private PostingsList combinedScore(PostingsList p, String con, double weight){
         PostingsList answer = new PostingsList(); 
          for(int i = 0; i < p.size(); i++){
-            String docName = index.docNames.get(p.get(i).docID);
-            int position = docName.lastIndexOf( '\\' ) + 1;
-            String fileIdentifier = docName.substring(position);
+            PostingsEntry e = p.get(i);
+            double rank = pageRank.score(e.docID);
             if(con == "combo"){
-                p.get(i).setScore((weight * pageRankHash.get(fileIdentifier)) + (double)(p.get(i).score / Math.pow(weight, 2)));
-                answer.add(p.get(i)); 
+                answer.add(new PostingsEntry(e.docID, (weight * rank) + (double)(e.score / Math.pow(weight, 2)))); 
             }
             else if(con == "page"){
-                p.get(i).setScore(pageRankHash.get(fileIdentifier));
-                answer.add(p.get(i));
+                answer.add(new PostingsEntry(e.docID, rank));
             } 
 
         }
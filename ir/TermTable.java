@@ -0,0 +1,99 @@
+/*  
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ * 
+ *   Johan Boye, 2017
+ */  
+
+package ir;
+
+
+/**
+ *   Maps character sequences to one shared String per distinct term, so
+ *   that tokens handed out as views by the Tokenizer only allocate a
+ *   String the first time the term is seen. Not thread-safe.
+ */
+public class TermTable {
+
+    /** Open-addressing hash table with linear probing; the length is a power of two. */
+    private String[] table = new String[1024];
+
+    /** Number of terms in the table. */
+    private int size = 0;
+
+
+    /**
+     *  Returns the String with the same characters as @code{s},
+     *  creating it if the term has not been seen before.
+     */
+    public String intern( CharSequence s ) {
+        int h = hash( s );
+        int mask = table.length - 1;
+        for ( int i = spread( h ) & mask; ; i = (i + 1) & mask ) {
+            String t = table[i];
+            if ( t == null ) {
+                t = s.toString();
+                table[i] = t;
+                if ( ++size * 2 > table.length )
+                    grow();
+                return t;
+            }
+            if ( t.hashCode() == h && contentEquals( t, s ))
+                return t;
+        }
+    }
+
+
+    /** Number of distinct terms. */
+    public int size() {
+        return size;
+    }
+
+
+    /** Forgets all terms, and shrinks the table to its initial size. */
+    public void clear() {
+        table = new String[1024];
+        size = 0;
+    }
+
+
+    /** The same hash as String.hashCode(), so stored terms need not be rehashed. */
+    static int hash( CharSequence s ) {
+        int h = 0;
+        for ( int i=0; i<s.length(); i++ )
+            h = 31 * h + s.charAt( i );
+        return h;
+    }
+
+
+    private static int spread( int h ) {
+        return h ^ ( h >>> 16 );
+    }
+
+
+    private static boolean contentEquals( String t, CharSequence s ) {
+        int n = t.length();
+        if ( n != s.length() )
+            return false;
+        for ( int i=0; i<n; i++ ) {
+            if ( t.charAt( i ) != s.charAt( i ))
+                return false;
+        }
+        return true;
+    }
+
+
+    private void grow() {
+        String[] old = table;
+        table = new String[old.length * 2];
+        int mask = table.length - 1;
+        for ( String t : old ) {
+            if ( t == null )
+                continue;
+            int i = spread( t.hashCode() ) & mask;
+            while ( table[i] != null )
+                i = (i + 1) & mask;
+            table[i] = t;
+        }
+    }
+}
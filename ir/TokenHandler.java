@@ -0,0 +1,22 @@
+/*  
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ * 
+ *  Johan Boye, 2016
+ */  
+
+package ir;
+
+
+/**
+ *  Receives the tokens of a text from Tokenizer.tokenize().
+ */
+public interface TokenHandler {
+
+    /**
+     *  Called once for every token, in text order. The CharSequence is a
+     *  view into the buffer of the Tokenizer, and is only valid during the
+     *  call; use toString() (or a TermTable) to keep the token.
+     */
+    public void token( CharSequence token );
+}
@@ -9,20 +9,25 @@ package ir;
 
 import java.io.Reader;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.regex.Pattern;
-import java.util.regex.Matcher;
-import java.util.regex.PatternSyntaxException;
 import java.lang.System;
 
 
 
 /** 
  *  This class performs tokenization of UTF-8 encoded text files. 
+ *
+ *  A Tokenizer can be reused for several texts by calling reset(), which
+ *  keeps the buffer and the patterns. Tokenizers are not thread-safe, but
+ *  the patterns are shared between all Tokenizers reading the same file.
+ *
+ *  Tokens can be read one at a time as Strings with nextToken(), or be
+ *  streamed to a TokenHandler with tokenize(). The latter hands out views
+ *  into the buffer and does not allocate anything per token.
  */
 public class Tokenizer {
 
@@ -66,13 +71,28 @@ public class Tokenizer {
     int token_start = -1;
 
     /** The next tokens to emit. */
-    ArrayList<String> token_queue = new ArrayList<String>();
+    ArrayDeque<String> token_queue = new ArrayDeque<String>();
+
+    /** Hands the tokens to nextToken() through the token queue. */
+    private final TokenHandler queueHandler = token -> token_queue.add( token.toString() );
+
+    /** Receives the tokens that are found. */
+    private TokenHandler handler = queueHandler;
+
+    /** The view of the buffer that is handed to the handler. */
+    private final BufferView view = new BufferView();
+
+    /** The view of the buffer that is matched against the patterns. */
+    private final BufferView candidate = new BufferView();
+
+    /** Matches candidate tokens against the patterns. */
+    private PatternSet.Finder finder = null;
 
     /** @code{true} if we've started reading tokens. */
     boolean started_reading = false;
 
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
-    ArrayList<Pattern> patterns = null;
+    List<Pattern> patterns = null;
 
     /** Special characters (with diacritics) can be translated into these characters. */
     public static final char[] SPECIAL_CHAR_MAPPING = {
@@ -95,16 +115,65 @@ public class Tokenizer {
      *         for non-standard words (like dates, mail addresses, etc.).
      */
     public Tokenizer( Reader reader, boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, String pattern_file ) {
+        this( reader, case_folding, remove_diacritics, remove_punctuation,
+              pattern_file == null ? null : PatternSet.load( pattern_file ));
+    }
+
+
+    /**
+     *  Constructor taking already compiled patterns.
+     *  @param patterns The patterns for non-standard words, or @code{null}.
+     */
+    public Tokenizer( Reader reader, boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, PatternSet patterns ) {
         this.reader = reader;
         this.case_folding = case_folding;
         this.remove_diacritics = remove_diacritics;
         this.remove_punctuation = remove_punctuation;
-        if ( pattern_file != null ) {
-            readPatterns( pattern_file );
+        if ( patterns != null ) {
+            this.patterns = patterns.patterns;
+            finder = patterns.finder();
         }
     }
 
 
+    /**
+     *  A CharSequence view of a part of the buffer.
+     */
+    final class BufferView implements CharSequence {
+        int start;
+        int end;
+
+        public int length() {
+            return end - start;
+        }
+
+        public char charAt( int index ) {
+            return buf[start + index];
+        }
+
+        public CharSequence subSequence( int from, int to ) {
+            return new String( buf, start + from, to - from );
+        }
+
+        public String toString() {
+            return new String( buf, start, end - start );
+        }
+    }
+
+
+    /**
+     *  Starts tokenizing a new text. The buffer and the patterns
+     *  are kept.
+     */
+    public void reset( Reader reader ) {
+        this.reader = reader;
+        ptr = 0;
+        token_start = -1;
+        token_queue.clear();
+        started_reading = false;
+    }
+
+
     /** 
      *  Returns true if the character is a punctuation character.
      */
@@ -121,30 +190,6 @@ public class Tokenizer {
     }
 
 
-    /**
-     *  Read the patterns that match non-standard words  
-     */
-    private void readPatterns( String filename ) {
-        patterns = new ArrayList<Pattern>();
-        String line = null;
-        try {
-            BufferedReader in = new BufferedReader( new FileReader( filename ));
-            while (( line = in.readLine()) != null ) {
-                line = line.trim();
-                if ( !line.startsWith( "//" ) && line.length() > 0 ) {
-                    patterns.add( Pattern.compile( line ));
-                }
-            }
-        }
-        catch ( IOException e ) {
-            System.err.println( "Warning: IOException reading the regular expressions from file" );
-        }
-        catch ( PatternSyntaxException e ) {
-            System.err.println( "ERROR: Malformed regular expression: " + line );
-        }
-    }
-
-
     /** 
      *  Normalizes letters by converting to lower-case and possibly
      *  removing diacritics. This method is also used for checking
@@ -200,12 +245,31 @@ public class Tokenizer {
     public String nextToken() throws IOException { 
         if ( token_queue.size() == 0 ) {
             if ( readTokens() )
-                return token_queue.remove( 0 );
+                return token_queue.poll();
             else
                 return null;
         }
         else {
-            return token_queue.remove( 0 );
+            return token_queue.poll();
+        }
+    }
+
+
+    /**
+     *  Hands every remaining token of the text to @code{handler}, in order.
+     *  The tokens are views into the buffer, so no String is created.
+     */
+    public void tokenize( TokenHandler handler ) throws IOException {
+        // Tokens already queued by hasMoreTokens() or nextToken() come first.
+        while ( !token_queue.isEmpty() ) {
+            handler.token( token_queue.poll() );
+        }
+        this.handler = handler;
+        try {
+            while ( readTokens() ) {
+            }
+        } finally {
+            this.handler = queueHandler;
         }
     }
 
@@ -264,6 +328,16 @@ public class Tokenizer {
     }
 
 
+    /**
+     *  Hands the characters buf[start..end) to the handler as a token.
+     */
+    private void emit( int start, int end ) {
+        view.start = start;
+        view.end = end;
+        handler.token( view );
+    }
+
+
     /**
      *  Adds token to the queue
      */
@@ -271,63 +345,58 @@ public class Tokenizer {
         if ( token_start < 0 ) {
             return false;
         }
-        String s = new String( buf, token_start, ptr-token_start );
-        if ( patterns != null ) {
-            // Now let's see if the string s matches one of the patterns 
-            // for non-standard words
-            for ( Pattern p : patterns ) {
-                Matcher m = p.matcher( s );
-                if ( m.find() ) {
-                    // The string contains a non-standard word. First check the prefix 
-                    // before the matching substring, then add the non-standard word  
-                    // to the token queue, then check the remainder of the string.
-                    addStandardTokensToQueue( s.substring(0, m.start() ));
-                    token_queue.add( m.group() );
-                    token_start += m.end();
-                    addTokensToQueue();
-                    return true;
-                }
+        if ( finder != null ) {
+            // Now let's see if the string buf[token_start..ptr) matches one
+            // of the patterns for non-standard words
+            candidate.start = token_start;
+            candidate.end = ptr;
+            if ( finder.find( candidate )) {
+                // The string contains a non-standard word. First check the prefix 
+                // before the matching substring, then add the non-standard word  
+                // to the token queue, then check the remainder of the string.
+                int start = token_start + finder.start();
+                int end = token_start + finder.end();
+                addStandardTokensToQueue( token_start, start );
+                emit( start, end );
+                token_start = end;
+                addTokensToQueue();
+                return true;
             }
         }
         // This string contains only standard words
-        return addStandardTokensToQueue( s );
+        return addStandardTokensToQueue( token_start, ptr );
     }
 
 
     /**
      *  Adds standard tokens (i.e. tokens not matching any regular
-     *  expression) to the queue.
+     *  expression) in buf[from..to) to the queue.
      */
-    private boolean addStandardTokensToQueue( String s ) {
-        // This string s does not match any specific pattern.
+    private boolean addStandardTokensToQueue( int from, int to ) {
+        // This string does not match any specific pattern.
         // Then split it, considering all punctuation symbols
         // to be separators.
         boolean tokens_found = false;
-        StringBuffer smallbuf = new StringBuffer();
-        for ( int i=0; i<s.length(); i++ ) {
-            if ( punctuation( s.charAt( i ))) {
+        int start = from;
+        for ( int i=from; i<to; i++ ) {
+            if ( punctuation( buf[i] )) {
                 // The string before the punctuation sign is a token
                 // unless it is empty
-                String t = smallbuf.toString();
-                if ( t.length()>0 ) {
-                    token_queue.add( t );
-                    smallbuf = new StringBuffer();
+                if ( i > start ) {
+                    emit( start, i );
                     tokens_found = true;
                 }
                 if ( !remove_punctuation ) {
-                    token_queue.add( "" + s.charAt( i ));
+                    emit( i, i+1 );
                     tokens_found = true;
                 }
-            }
-            else {
-                smallbuf.append( s.charAt( i ));
+                start = i+1;
             }
         }
         // The string after the last punctuation sign is a token
         // unless it is empty
-        String t = smallbuf.toString();
-        if ( t.length()>0 ) {
-            token_queue.add( t );
+        if ( to > start ) {
+            emit( start, to );
             tokens_found = true;
         }   
         return tokens_found;
@@ -339,8 +408,12 @@ public class Tokenizer {
      */
     private void refillBuffer( int start ) throws IOException {
         int chars_read = reader.read( buf, start, BUFFER_LENGTH-start );
-        if ( chars_read >= 0 && chars_read < BUFFER_LENGTH-start ) {
-            buf[chars_read] = 0;
+        if ( chars_read < 0 ) {
+            // The buffer may hold text from before a reset().
+            buf[start] = 0;
+        }
+        else if ( chars_read < BUFFER_LENGTH-start ) {
+            buf[start+chars_read] = 0;
         }
     }
 
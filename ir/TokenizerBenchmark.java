@@ -0,0 +1,181 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ *
+ *  Johan Boye, 2016
+ */
+
+package ir;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+
+/**
+ *  Measures tokenizer throughput on the files of a directory. The files
+ *  are read into memory first, so that only tokenization is timed.
+ */
+public class TokenizerBenchmark {
+
+    String dirName = null;
+    String patternsFile = null;
+    int rounds = 3;
+
+    /** The contents of the files to tokenize. */
+    ArrayList<String> texts = new ArrayList<String>();
+
+
+    void readFiles( File f ) throws IOException {
+        if ( f.isDirectory() ) {
+            String[] fs = f.list();
+            if ( fs != null ) {
+                for ( int i=0; i<fs.length; i++ ) {
+                    readFiles( new File( f, fs[i] ));
+                }
+            }
+        } else if ( f.canRead() ) {
+            texts.add( new String( Files.readAllBytes( f.toPath() ), StandardCharsets.UTF_8 ));
+        }
+    }
+
+
+    /**
+     *  Creates a new Tokenizer for every file, and reads the patterns
+     *  file again each time (how documents used to be tokenized).
+     */
+    long perDocument() throws IOException {
+        long tokens = 0;
+        for ( String text : texts ) {
+            PatternSet patterns = patternsFile == null ? null : PatternSet.read( patternsFile );
+            Tokenizer tok = new Tokenizer( new StringReader( text ), true, false, true, patterns );
+            while ( tok.hasMoreTokens() ) {
+                tok.nextToken();
+                tokens++;
+            }
+        }
+        return tokens;
+    }
+
+
+    /**
+     *  Reuses one Tokenizer with the shared patterns for all files.
+     */
+    long reused() throws IOException {
+        long tokens = 0;
+        Tokenizer tok = new Tokenizer( null, true, false, true, patternsFile );
+        for ( String text : texts ) {
+            tok.reset( new StringReader( text ));
+            while ( tok.hasMoreTokens() ) {
+                tok.nextToken();
+                tokens++;
+            }
+        }
+        return tokens;
+    }
+
+
+    /**
+     *  Streams the tokens of all files from one reused Tokenizer
+     *  to a handler, without creating Strings.
+     */
+    long streaming() throws IOException {
+        Tokenizer tok = new Tokenizer( null, true, false, true, patternsFile );
+        TokenCounter counter = new TokenCounter();
+        for ( String text : texts ) {
+            tok.reset( new StringReader( text ));
+            tok.tokenize( counter );
+        }
+        return counter.tokens;
+    }
+
+
+    static class TokenCounter implements TokenHandler {
+        long tokens = 0;
+
+        public void token( CharSequence token ) {
+            tokens++;
+        }
+    }
+
+
+    /**
+     *  Returns the number of bytes allocated by the current thread so far,
+     *  or -1 if the JVM does not tell.
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if ( bean instanceof com.sun.management.ThreadMXBean ) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes( Thread.currentThread().getId() );
+        }
+        return -1;
+    }
+
+
+    interface Mode {
+        long run() throws IOException;
+    }
+
+
+    void measure( String name, Mode mode ) throws IOException {
+        mode.run();
+        long tokens = 0;
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for ( int r=0; r<rounds; r++ ) {
+            tokens += mode.run();
+        }
+        double seconds = ( System.nanoTime() - start ) / 1e9;
+        allocated = allocatedBytes() - allocated;
+        System.out.println( String.format( "%-14s %10.0f files/s %12.0f tokens/s %10.1f bytes/token",
+                                           name, texts.size() * rounds / seconds, tokens / seconds,
+                                           (double)allocated / tokens ));
+    }
+
+
+    void run() throws IOException {
+        readFiles( new File( dirName ));
+        System.out.println( texts.size() + " files" );
+        measure( "per-document", this::perDocument );
+        measure( "reused", this::reused );
+        measure( "streaming", this::streaming );
+    }
+
+
+    /** Prints usage information. */
+    static void printHelpMessage() {
+        System.err.println( "The following parameters are available: " );
+        System.err.println( "  -d <dirname> : directory with the files to tokenize (mandatory)" );
+        System.err.println( "  -p <filename> : name of the file containing regular expressions for non-standard words (optional)" );
+        System.err.println( "  -r <number> : number of rounds (default 3)" );
+    }
+
+
+    public static void main( String[] args ) throws IOException {
+        TokenizerBenchmark b = new TokenizerBenchmark();
+        int i=0;
+        while ( i<args.length ) {
+            if ( "-d".equals( args[i] ) && i+1<args.length ) {
+                b.dirName = args[i+1];
+                i += 2;
+            } else if ( "-p".equals( args[i] ) && i+1<args.length ) {
+                b.patternsFile = args[i+1];
+                i += 2;
+            } else if ( "-r".equals( args[i] ) && i+1<args.length ) {
+                b.rounds = Integer.parseInt( args[i+1] );
+                i += 2;
+            } else {
+                System.err.println( "Unrecognized parameter: " + args[i] );
+                printHelpMessage();
+                return;
+            }
+        }
+        if ( b.dirName == null ) {
+            printHelpMessage();
+            return;
+        }
+        b.run();
+    }
+}
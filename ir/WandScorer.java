@@ -0,0 +1,258 @@
+/*  
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ * 
+ *   Johan Boye, 2017
+ */  
+
+package ir;
+
+import java.util.PriorityQueue;
+
+
+/**
+ *   Document-at-a-time evaluation of ranked tf-idf queries with dynamic
+ *   pruning (WAND, and Block-Max WAND).
+ *
+ *   The postings lists of the query terms are traversed in parallel, in
+ *   docID order. The contribution of a term to a score is at most its
+ *   weight times the largest tf/length in its list (or, for Block-Max
+ *   WAND, in the current block of its list; see PostingsList.blockMax).
+ *   When the sum of these upper bounds for a document is below the score
+ *   of the k:th best document found so far, the document cannot make it
+ *   into the top k and is skipped without being scored.
+ *
+ *   The results are the same as those of Searcher.fastCosineScore()
+ *   followed by sortTopK(k): scores are added in query term order, as
+ *   there, and equal scores are ordered as in the term-at-a-time result
+ *   (on the first query term containing the document, then on docID).
+ *   Since bounds are only compared with a little slack, documents whose
+ *   bound ties with the threshold are always scored.
+ */
+public class WandScorer {
+
+    /** Relative slack on the upper bounds, to cover rounding errors. */
+    static final double SLACK = 1e-9;
+
+    /** Position of a cursor that has passed its last posting. */
+    static final int END = Integer.MAX_VALUE;
+
+    /** The index to be searched. */
+    Index index;
+
+
+    public WandScorer( Index index ) {
+        this.index = index;
+    }
+
+
+    /**
+     *  The position of one query term in its postings list.
+     */
+    static final class Cursor {
+        /** The position of the term in the query. */
+        final int term;
+        final PostingsList list;
+        /** The query weight of the term times its idf. */
+        final double weight;
+        final float[] blockMax;
+        /** Upper bound of the contribution of the term to any score. */
+        final double maxScore;
+        int pos = 0;
+        int doc;
+        /** The block looked at last by block(), and its last docID. */
+        int block = 0;
+        int blockLast;
+
+        Cursor( int term, PostingsList list, double weight, float[] blockMax ) {
+            this.term = term;
+            this.list = list;
+            this.weight = weight;
+            this.blockMax = blockMax;
+            float max = 0;
+            for ( float b : blockMax )
+                max = Math.max( max, b );
+            maxScore = weight * max;
+            doc = list.get( 0 ).docID;
+            blockLast = lastDoc( 0 );
+        }
+
+        /** Moves to the first posting with a docID not less than @code{target}. */
+        void advance( int target ) {
+            pos = list.advance( pos, target );
+            doc = pos < list.size() ? list.get( pos ).docID : END;
+        }
+
+        /** Moves to the next posting. */
+        void next() {
+            pos++;
+            doc = pos < list.size() ? list.get( pos ).docID : END;
+        }
+
+        /**
+         *  Returns the block holding the first posting with a docID not
+         *  less than @code{target}, or -1 if there is none. The targets
+         *  never decrease, so the blocks are scanned forward from the
+         *  one found last time.
+         */
+        int block( int target ) {
+            while ( blockLast < target ) {
+                if ( ++block == blockMax.length )
+                    blockLast = END;
+                else
+                    blockLast = lastDoc( block );
+            }
+            return block < blockMax.length ? block : -1;
+        }
+
+        /** The last docID in a block. */
+        int lastDoc( int block ) {
+            return list.get( Math.min( ( block + 1 ) * PostingsList.BLOCK_SIZE, list.size() ) - 1 ).docID;
+        }
+    }
+
+
+    /**
+     *  A document in the current top k.
+     */
+    static final class Candidate {
+        final int docID;
+        /** The first query term containing the document. */
+        final int first;
+        final double score;
+
+        Candidate( int docID, int first, double score ) {
+            this.docID = docID;
+            this.first = first;
+            this.score = score;
+        }
+
+        /** Order of the results: higher score, then earlier first term, then lower docID. */
+        int compareTo( double score, int first, int docID ) {
+            int c = Double.compare( score, this.score );
+            if ( c != 0 )
+                return c;
+            c = Integer.compare( this.first, first );
+            return c != 0 ? c : Integer.compare( this.docID, docID );
+        }
+    }
+
+
+    /**
+     *  Returns the @code{k} best documents for the query, ranked, or
+     *  @code{null} if the query cannot be pruned (negative weights).
+     *
+     *  @param blockMax Whether to use the block upper bounds as well.
+     *  @param acc Provides the document lengths.
+     */
+    public PostingsList search( Query query, int k, boolean blockMax, ScoreAccumulator acc ) {
+        acc.clear( index );
+        int n = Index.docLengths.size();
+        Cursor[] byTerm = new Cursor[query.size()];
+        int m = 0;
+        for ( int i = 0; i < query.size(); i++ ) {
+            PostingsList postings = index.getPostings( query.queryterm.get( i ).term );
+            if ( postings == null || postings.size() == 0 )
+                continue;
+            int df = postings.size();
+            double weight = query.queryterm.get( i ).weight * Math.log( (double)n / (double)df );
+            if ( !( weight >= 0 ))
+                return null;
+            byTerm[m++] = new Cursor( i, postings, weight, postings.blockMax( Index.docLengths ));
+        }
+        Cursor[] cursors = new Cursor[m];
+        System.arraycopy( byTerm, 0, cursors, 0, m );
+
+        // The current top k, worst first.
+        PriorityQueue<Candidate> top = new PriorityQueue<Candidate>( k + 1, (a, b) -> b.compareTo( a.score, a.first, a.docID ));
+        while ( true ) {
+            sort( cursors );
+            double threshold = top.size() < k ? Double.NEGATIVE_INFINITY : top.peek().score;
+
+            // The pivot is the first document whose upper bound reaches the threshold.
+            double bound = 0;
+            int p = -1;
+            for ( int i = 0; i < m && cursors[i].doc != END; i++ ) {
+                bound += cursors[i].maxScore;
+                if ( bound * ( 1 + SLACK ) >= threshold ) {
+                    p = i;
+                    break;
+                }
+            }
+            if ( p < 0 )
+                break;
+            int pivot = cursors[p].doc;
+            while ( p + 1 < m && cursors[p+1].doc == pivot )
+                p++;
+
+            if ( blockMax && threshold > Double.NEGATIVE_INFINITY ) {
+                double blockBound = 0;
+                int next = p + 1 < m ? cursors[p+1].doc : END;
+                for ( int i = 0; i <= p; i++ ) {
+                    int b = cursors[i].block( pivot );
+                    if ( b >= 0 ) {
+                        blockBound += cursors[i].weight * cursors[i].blockMax[b];
+                        next = Math.min( next, cursors[i].lastDoc( b ) + 1 );
+                    }
+                }
+                if ( blockBound * ( 1 + SLACK ) < threshold ) {
+                    // No document before @code{next} can reach the threshold.
+                    for ( int i = 0; i <= p; i++ )
+                        cursors[i].advance( next );
+                    continue;
+                }
+            }
+
+            if ( cursors[0].doc == pivot ) {
+                // Score the pivot, adding the terms in query order.
+                double score = 0;
+                int first = -1;
+                for ( int i = 0; i < m; i++ ) {
+                    Cursor c = byTerm[i];
+                    if ( c.doc == pivot ) {
+                        score += ( c.weight * c.list.get( c.pos ).size() ) / acc.length( pivot );
+                        if ( first < 0 )
+                            first = c.term;
+                    }
+                }
+                if ( top.size() < k ) {
+                    top.add( new Candidate( pivot, first, score ));
+                } else if ( top.peek().compareTo( score, first, pivot ) > 0 ) {
+                    top.poll();
+                    top.add( new Candidate( pivot, first, score ));
+                }
+                for ( int i = 0; i <= p; i++ )
+                    cursors[i].next();
+            } else {
+                for ( int i = 0; cursors[i].doc < pivot; i++ )
+                    cursors[i].advance( pivot );
+            }
+        }
+
+        PostingsEntry[] ranked = new PostingsEntry[top.size()];
+        for ( int i = ranked.length - 1; i >= 0; i-- ) {
+            Candidate c = top.poll();
+            ranked[i] = new PostingsEntry( c.docID, c.score );
+        }
+        PostingsList result = new PostingsList();
+        for ( PostingsEntry e : ranked )
+            result.add( e );
+        // Already in order; this only marks the list as ranked.
+        result.sortScore();
+        return result;
+    }
+
+
+    /** Sorts the cursors on their current docID (there are only a few). */
+    private static void sort( Cursor[] cursors ) {
+        for ( int i = 1; i < cursors.length; i++ ) {
+            Cursor c = cursors[i];
+            int j = i - 1;
+            while ( j >= 0 && cursors[j].doc > c.doc ) {
+                cursors[j+1] = cursors[j];
+                j--;
+            }
+            cursors[j+1] = c;
+        }
+    }
+}
@@ -1,14 +1,10 @@
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 import java.io.*;
 
 public class PageRank  {
 
-    /**  
-     *   Maximal number of documents. We're assuming here that we
-     *   don't have more docs than we can keep in main memory.
-     */
-    final static int MAX_NUMBER_OF_DOCS = 2000000;
-
     /**
      *   Mapping from document names to document numbers.
      */
@@ -17,25 +13,12 @@ public class PageRank  {
     /**
      *   Mapping from document numbers to document names
      */
-    String[] docName = new String[MAX_NUMBER_OF_DOCS];
-
-    /**  
-     *   A memory-efficient representation of the transition matrix.
-     *   The outlinks are represented as a HashMap, whose keys are 
-     *   the numbers of the documents linked from.<p>
-     *
-     *   The value corresponding to key i is a HashMap whose keys are 
-     *   all the numbers of documents j that i links to.<p>
-     *
-     *   If there are no outlinks from i, then the value corresponding 
-     *   key i is null.
-     */
-    HashMap<Integer,HashMap<Integer,Boolean>> link = new HashMap<Integer,HashMap<Integer,Boolean>>();
+    String[] docName = new String[0];
 
     /**
-     *   The number of outlinks from each node.
+     *   The number of distinct outlinks from each node.
      */
-    int[] out = new int[MAX_NUMBER_OF_DOCS];
+    int[] out = new int[0];
 
 	private HashMap<String,String> title = new HashMap<String,String>();
     /**
@@ -50,6 +33,25 @@ public class PageRank  {
      */
     final static double EPSILON = 0.0001;
 
+    /**
+     *   Extrapolation is tried when the ratio between two consecutive
+     *   residuals differs by at most this much, relatively, from the
+     *   ratio before, i.e. when one error term dominates.
+     */
+    final static double RATIO_TOLERANCE = 0.05;
+
+    /**
+     *   Aitken extrapolation is only tried when the cosine between the
+     *   last two differences of the power iteration is at least this,
+     *   i.e. when the error is close to a single eigenvector.
+     */
+    final static double MIN_ALIGNMENT = 0.9;
+
+    /**
+     *   Ways of solving for the PageRank vector (see iterate).
+     */
+    enum Solver { POWER, GAUSS_SEIDEL, AITKEN, QUADRATIC }
+
 
 
 	public ArrayList<DocumentRaking> pageRanked = new ArrayList<DocumentRaking>();
@@ -76,7 +78,66 @@ public class PageRank  {
 
     public PageRank( String filename ) throws Exception {
 	int noOfDocs = readDocs( filename );
-	iterate( noOfDocs, 1000 );
+	printTop( iterate( noOfDocs, 1000 ), noOfDocs );
+    }
+
+
+    /**
+     *   Computes the PageRank with the given solver, starting from the
+     *   ranks in @code{warmFile} if it is not null, and writes all ranks
+     *   to @code{saveFile} if it is not null. With a null solver, every
+     *   solver is run from the same start and reported.
+     */
+    public PageRank( String filename, Solver solver, String warmFile, String saveFile ) throws Exception {
+	int noOfDocs = readDocs( filename );
+	double[] start = warmFile == null ? null : readRanks( warmFile, noOfDocs );
+	double[] aCurrent = null;
+	Solver first = null;
+	for ( Solver s : solver == null ? Solver.values() : new Solver[] { solver } ) {
+	    double[] result = iterate( noOfDocs, 1000, s, start );
+	    if ( aCurrent == null ) {
+		aCurrent = result;
+		first = s;
+	    } else {
+		System.err.println( String.format( "L1 distance from %s to %s: %.3e", s, first, distance( aCurrent, result )));
+	    }
+	}
+	printTop( aCurrent, noOfDocs );
+	if ( saveFile != null )
+	    writeRanks( aCurrent, noOfDocs, saveFile );
+    }
+
+
+    /**
+     *   Computes the PageRank with the given number of threads.
+     */
+    public PageRank( String filename, int threads ) throws Exception {
+	int noOfDocs = readDocs( filename );
+	printTop( iterateParallel( noOfDocs, 1000, threads ), noOfDocs );
+    }
+
+
+    /**
+     *   Approximates the PageRank by Monte Carlo simulation with
+     *   @code{walks} random walks per document (see monteCarlo), and
+     *   compares the top documents with those of power iteration.
+     */
+    public PageRank( String filename, int threads, int walks, boolean randomStart ) throws Exception {
+	int noOfDocs = readDocs( filename );
+	long start = System.nanoTime();
+	double[] exact = iterateParallel( noOfDocs, 1000, threads );
+	double exactTime = ( System.nanoTime() - start ) / 1e6;
+	start = System.nanoTime();
+	double[] approximate = monteCarlo( noOfDocs, walks, randomStart, threads );
+	double approximateTime = ( System.nanoTime() - start ) / 1e6;
+	printTop( approximate, noOfDocs );
+	System.out.println( String.format( "power iteration %.1f ms, Monte Carlo (%s, %d walks per document) %.1f ms",
+					   exactTime, randomStart ? "end points of walks from random documents" : "complete paths from every document",
+					   walks, approximateTime ));
+	for ( int k : new int[] { 30, 100 } ) {
+	    System.out.println( String.format( "top %d: overlap %.2f, Kendall tau %.3f",
+					       k, overlap( exact, approximate, k ), kendallTau( exact, approximate, k )));
+	}
     }
 
 
@@ -86,111 +147,733 @@ public class PageRank  {
     /**
      *   Reads the documents and fills the data structures. 
      *
+     *   The file is read twice, so that the links can go straight into
+     *   the link matrix without any per-link objects: the first pass
+     *   numbers the documents and counts the links from each, and the
+     *   second puts the links in place. Links that appear more than once
+     *   are then removed. The matrix takes 4 bytes per link (8 with the
+     *   transposed matrix of iterateParallel and Gauss-Seidel), plus
+     *   about 100 bytes per document for its name.
+     *
      *   @return the number of documents read.
      */
     int readDocs( String filename ) {
 		int fileIndex = 0;
 		try {
 			System.err.print( "Reading file... " );
-			BufferedReader in = new BufferedReader( new FileReader( filename ));
-			String line;
-			while ((line = in.readLine()) != null && fileIndex<MAX_NUMBER_OF_DOCS ) {
-			int index = line.indexOf( ";" );
-			String title = line.substring( 0, index );
-			Integer fromdoc = docNumber.get( title );
-			//  Have we seen this document before?
-			if ( fromdoc == null ) {	
-				// This is a previously unseen doc, so add it to the table.
-				fromdoc = fileIndex++;
-				docNumber.put( title, fromdoc );
-				docName[fromdoc] = title;
-			}
-			// Check all outlinks.
-			StringTokenizer tok = new StringTokenizer( line.substring(index+1), "," );
-			while ( tok.hasMoreTokens() && fileIndex<MAX_NUMBER_OF_DOCS ) {
-				String otherTitle = tok.nextToken();
-				Integer otherDoc = docNumber.get( otherTitle );
-				if ( otherDoc == null ) {
-				// This is a previousy unseen doc, so add it to the table.
-				otherDoc = fileIndex++;
-				docNumber.put( otherTitle, otherDoc );
-				docName[otherDoc] = otherTitle;
-				}
-				// Set the probability to 0 for now, to indicate that there is
-				// a link from fromdoc to otherDoc.
-				if ( link.get(fromdoc) == null ) {
-				link.put(fromdoc, new HashMap<Integer,Boolean>());
-				}
-				if ( link.get(fromdoc).get(otherDoc) == null ) {
-				link.get(fromdoc).put( otherDoc, true );
-				out[fromdoc]++;
+			// Pass 1: number the documents and count their links.
+			int[] count = new int[1024];
+			docName = new String[1024];
+			long links = 0;
+			try ( BufferedReader in = new BufferedReader( new FileReader( filename ))) {
+				String line;
+				while ( ( line = in.readLine() ) != null ) {
+					int index = line.indexOf( ";" );
+					if ( index < 0 )
+						continue;
+					int fromdoc = number( line.substring( 0, index ));
+					for ( int start = index + 1; start < line.length(); ) {
+						int end = line.indexOf( ',', start );
+						if ( end < 0 )
+							end = line.length();
+						if ( end > start ) {
+							number( line.substring( start, end ));
+							if ( count.length < docName.length )
+								count = Arrays.copyOf( count, docName.length );
+							count[fromdoc]++;
+							links++;
+						}
+						start = end + 1;
+					}
 				}
 			}
+			fileIndex = docNumber.size();
+			if ( links > Integer.MAX_VALUE - 8 )
+				throw new IOException( "too many links (" + links + ") for one link matrix" );
+			docName = Arrays.copyOf( docName, fileIndex );
+			offsets = new int[fileIndex + 1];
+			for ( int i = 0; i < fileIndex; i++ )
+				offsets[i + 1] = offsets[i] + ( i < count.length ? count[i] : 0 );
+			count = null;
+
+			// Pass 2: put every link after those already read from the same document.
+			targets = new int[(int)links];
+			int[] next = Arrays.copyOf( offsets, fileIndex );
+			try ( BufferedReader in = new BufferedReader( new FileReader( filename ))) {
+				String line;
+				while ( ( line = in.readLine() ) != null ) {
+					int index = line.indexOf( ";" );
+					if ( index < 0 )
+						continue;
+					int fromdoc = docNumber.get( line.substring( 0, index ));
+					for ( int start = index + 1; start < line.length(); ) {
+						int end = line.indexOf( ',', start );
+						if ( end < 0 )
+							end = line.length();
+						if ( end > start )
+							targets[next[fromdoc]++] = docNumber.get( line.substring( start, end ));
+						start = end + 1;
+					}
+				}
 			}
-			if ( fileIndex >= MAX_NUMBER_OF_DOCS ) {
-			System.err.print( "stopped reading since documents table is full. " );
-			}
-			else {
+			next = null;
+			removeDuplicateLinks( fileIndex );
 			System.err.print( "done. " );
-			}
 		}
 		catch ( FileNotFoundException e ) {
 			System.err.println( "File " + filename + " not found!" );
+			fileIndex = 0;
 		}
 		catch ( IOException e ) {
-			System.err.println( "Error reading file " + filename );
+			System.err.println( "Error reading file " + filename + ": " + e.getMessage() );
+			fileIndex = 0;
+		}
+		if ( fileIndex == 0 ) {
+			offsets = new int[1];
+			targets = new int[0];
+			out = new int[0];
 		}
 		System.err.println( "Read " + fileIndex + " number of documents" );
 		return fileIndex;
     }
 
 
+    /**
+     *   Returns the number of a document, numbering it if it is new.
+     */
+    private int number( String title ) {
+		Integer doc = docNumber.get( title );
+		//  Have we seen this document before?
+		if ( doc == null ) {
+			// This is a previously unseen doc, so add it to the table.
+			doc = docNumber.size();
+			docNumber.put( title, doc );
+			if ( doc == docName.length )
+				docName = Arrays.copyOf( docName, 2 * docName.length );
+			docName[doc] = title;
+		}
+		return doc;
+    }
+
+
     /* --------------------------------------------- */
 
 
+    /**
+     *   The links as a compressed sparse row matrix: the documents that
+     *   document i links to are targets[offsets[i]] ... targets[offsets[i+1]-1].
+     */
+    int[] offsets;
+    int[] targets;
+
+    /**
+     *   The transposed matrix: the documents that link to document i are
+     *   sources[inOffsets[i]] ... sources[inOffsets[i+1]-1].
+     */
+    int[] inOffsets;
+    int[] sources;
+
+
+    /**
+     *   Sorts the links of every document, moves them down over the
+     *   links removed as duplicates, and counts the outlinks.
+     */
+    void removeDuplicateLinks( int numberOfDocs ) {
+		out = new int[numberOfDocs];
+		int k = 0;
+		for ( int i = 0; i < numberOfDocs; i++ ) {
+			int from = offsets[i];
+			int to = offsets[i + 1];
+			Arrays.sort( targets, from, to );
+			offsets[i] = k;
+			for ( int j = from; j < to; j++ ) {
+				if ( j == from || targets[j] != targets[j - 1] )
+					targets[k++] = targets[j];
+			}
+			out[i] = k - offsets[i];
+		}
+		offsets[numberOfDocs] = k;
+		if ( k < targets.length )
+			targets = Arrays.copyOf( targets, k );
+    }
+
+
+    /**
+     *   Builds the transposed matrix from the compressed sparse row matrix.
+     */
+    void buildInLinkMatrix( int numberOfDocs ) {
+		inOffsets = new int[numberOfDocs + 1];
+		for ( int k = 0; k < targets.length; k++ )
+			inOffsets[targets[k] + 1]++;
+		for ( int i = 0; i < numberOfDocs; i++ )
+			inOffsets[i + 1] += inOffsets[i];
+		sources = new int[targets.length];
+		int[] next = Arrays.copyOf( inOffsets, numberOfDocs );
+		for ( int j = 0; j < numberOfDocs; j++ )
+			for ( int k = offsets[j]; k < offsets[j + 1]; k++ )
+				sources[next[targets[k]]++] = j;
+    }
+
+
+    /**
+     *   Splits the documents into ranges with about the same number of
+     *   documents plus inlinks, so that the ranges take about the same
+     *   time to compute. Range r is bounds[r] ... bounds[r+1]-1.
+     */
+    int[] partition( int numberOfDocs, int ranges ) {
+		int[] bounds = new int[ranges + 1];
+		long work = (long)numberOfDocs + sources.length;
+		int i = 0;
+		for ( int r = 1; r < ranges; r++ ) {
+			long goal = work * r / ranges;
+			while ( i < numberOfDocs && (long)i + inOffsets[i] < goal )
+				i++;
+			bounds[r] = i;
+		}
+		bounds[ranges] = numberOfDocs;
+		return bounds;
+    }
+
+
     /*
      *   Chooses a probability vector a, and repeatedly computes
      *   aP, aP^2, aP^3... until aP^i = aP^(i+1).
+     *
+     *   P is never formed. With probability 1-BORED the surfer follows
+     *   one of the outlinks of the current document, which is a sparse
+     *   product over the link matrix. From a document without outlinks,
+     *   and with probability BORED from any document, the surfer jumps
+     *   to a random document, which adds the same amount to every
+     *   document. Each iteration is therefore linear in the number of
+     *   links.
+     */
+    double[] iterate( int numberOfDocs, int maxIterations ) throws Exception {
+		return iterate( numberOfDocs, maxIterations, Solver.POWER, null );
+    }
+
+
+    /**
+     *   Solves for the PageRank vector, starting from @code{start}, or
+     *   from all probability on document 0 if it is null.
+     *
+     *   POWER does the iterations described above. GAUSS_SEIDEL updates
+     *   the vector in place, pulling the probability of each document
+     *   from its inlinks, so that documents later in the sweep already
+     *   see the new probabilities of earlier ones. AITKEN and QUADRATIC
+     *   do power iterations, but estimate the limit from the last three
+     *   or four vectors, which removes the slowest decaying error terms
+     *   (Kamvar et al., "Extrapolation methods for accelerating PageRank
+     *   computations"). This only helps once those terms dominate, so an
+     *   estimate is only made when the residuals shrink at a steady rate
+     *   (see RATIO_TOLERANCE), and for Aitken, which removes one term,
+     *   when the last differences point the same way (see MIN_ALIGNMENT).
+     *   The estimate is then checked with one power step, and thrown away
+     *   if its residual is not smaller than that of the last iteration.
+     *
+     *   The number of iterations (power steps, including those checking
+     *   estimates) and the time taken are reported.
      */
-    void iterate( int numberOfDocs, int maxIterations ) throws Exception {
-		// gClaculator(numberOfDocs);
+    double[] iterate( int numberOfDocs, int maxIterations, Solver solver, double[] start ) throws Exception {
+		if ( solver == Solver.GAUSS_SEIDEL && inOffsets == null )
+			buildInLinkMatrix( numberOfDocs );
+		long startTime = System.nanoTime();
 		double [] a = new double[numberOfDocs];
-		Arrays.fill(a, 0);
 		double [] aCurrent = new double[numberOfDocs];
-		Arrays.fill(aCurrent, 0);
-		aCurrent[0] = 1;
+		if ( start != null )
+			System.arraycopy( start, 0, aCurrent, 0, numberOfDocs );
+		else
+			aCurrent[0] = 1;
+		// The last vectors of the power iteration, oldest first.
+		int kept = solver == Solver.AITKEN ? 3 : solver == Solver.QUADRATIC ? 4 : 0;
+		double[][] history = new double[kept][];
+		double[] estimate = kept > 0 ? new double[numberOfDocs] : null;
+		double[] checked = kept > 0 ? new double[numberOfDocs] : null;
+		int extrapolations = 0;
+		int rejected = 0;
+		double lastDif = 0;
+		double lastRatio = 0;
 		double sumDif = 1;
 		int counter = 0;
 		while(sumDif > EPSILON && counter < maxIterations){
-			sumDif = 0;	
-			a = Arrays.copyOf(aCurrent, aCurrent.length);
-			for(int i = 0; i < numberOfDocs; i++){
-				double temp = 0;
-				for(int j = 0; j < numberOfDocs; j++){
-					HashMap <Integer,Boolean> link_temp =  link.get(j);
-					if(link_temp == null){
-						temp += a[j] * (((1 - BORED) * (double)1/numberOfDocs) + (BORED * (double)1/numberOfDocs));
-					}else if(link_temp.get(i) != null){
-						temp += a[j] * (((1 - BORED) * (double)1/out[j]) + (BORED * (double)1/numberOfDocs));
-					}
+			if ( solver == Solver.GAUSS_SEIDEL ) {
+				sumDif = gaussSeidelSweep( aCurrent, numberOfDocs );
+			} else {
+				double[] tmp = a;
+				a = aCurrent;
+				aCurrent = tmp;
+				sumDif = powerStep( a, aCurrent, numberOfDocs );
+			}
+			counter++;
+			if ( kept > 0 && sumDif > EPSILON ) {
+				double ratio = lastDif > 0 ? sumDif / lastDif : 0;
+				boolean steady = lastRatio > 0 && Math.abs( ratio - lastRatio ) <= RATIO_TOLERANCE * ratio;
+				lastDif = sumDif;
+				lastRatio = ratio;
+				// Keep a copy of the new vector, reusing the oldest one.
+				double[] oldest = history[0];
+				System.arraycopy( history, 1, history, 0, kept - 1 );
+				history[kept - 1] = oldest == null ? aCurrent.clone() : oldest;
+				System.arraycopy( aCurrent, 0, history[kept - 1], 0, numberOfDocs );
+				if ( steady && history[0] != null &&
+				     ( solver != Solver.AITKEN || alignment( history[kept - 3], history[kept - 2], history[kept - 1] ) >= MIN_ALIGNMENT )) {
+					if ( solver == Solver.AITKEN )
+						aitken( history, estimate, numberOfDocs );
 					else
-						temp += a[j] *(BORED * (double)1/numberOfDocs);
+						quadratic( history, estimate, numberOfDocs );
+					double dif = powerStep( estimate, checked, numberOfDocs );
+					counter++;
+					if ( dif < sumDif ) {
+						System.arraycopy( checked, 0, aCurrent, 0, numberOfDocs );
+						sumDif = dif;
+						lastDif = dif;
+						extrapolations++;
+					} else {
+						rejected++;
+					}
+					// The kept vectors no longer belong to one power iteration,
+					// or gave a bad estimate.
+					Arrays.fill( history, null );
+					lastRatio = 0;
 				}
-				aCurrent[i] = temp;
 			}
-			double normalTmep = 0;
-			for (double element: aCurrent){
-				normalTmep += element;
+		}
+		System.err.println( String.format( "%s: converged after %d iterations%s, %.1f ms",
+						   solver, counter, kept > 0 ? ", " + extrapolations + " extrapolations (" + rejected + " rejected)" : "",
+						   ( System.nanoTime() - startTime ) / 1e6 ));
+		return aCurrent;
+    }
+
+
+    /**
+     *   Computes aCurrent = aP, and returns the L1 distance between them.
+     */
+    double powerStep( double[] a, double[] aCurrent, int numberOfDocs ) {
+		// The probability mass that is spread over all documents.
+		double total = 0;
+		double dangling = 0;
+		for(int j = 0; j < numberOfDocs; j++){
+			total += a[j];
+			if(out[j] == 0)
+				dangling += a[j];
+		}
+		double jump = ((1 - BORED) * dangling + BORED * total) / numberOfDocs;
+		Arrays.fill(aCurrent, jump);
+		for(int j = 0; j < numberOfDocs; j++){
+			if(out[j] == 0)
+				continue;
+			double share = (1 - BORED) * a[j] / out[j];
+			for(int k = offsets[j]; k < offsets[j + 1]; k++)
+				aCurrent[targets[k]] += share;
+		}
+		double normalTmep = 0;
+		for (double element: aCurrent){
+			normalTmep += element;
+		}
+		double sumDif = 0;
+		for(int i = 0; i < numberOfDocs; i++){
+			aCurrent[i] = (double)aCurrent[i] / normalTmep;
+			sumDif += Math.abs(a[i] - aCurrent[i]);
+		}
+		return sumDif;
+    }
+
+
+    /**
+     *   Updates @code{a} in place, document by document, and returns the
+     *   L1 norm of the change. The random jump depends on the total and
+     *   dangling probability, which are kept up to date as the
+     *   probabilities change.
+     */
+    double gaussSeidelSweep( double[] a, int numberOfDocs ) {
+		double total = 0;
+		double dangling = 0;
+		for ( int j = 0; j < numberOfDocs; j++ ) {
+			total += a[j];
+			if ( out[j] == 0 )
+				dangling += a[j];
+		}
+		double sumDif = 0;
+		for ( int i = 0; i < numberOfDocs; i++ ) {
+			double pulled = 0;
+			for ( int k = inOffsets[i]; k < inOffsets[i + 1]; k++ )
+				pulled += a[sources[k]] / out[sources[k]];
+			double updated = ( ( 1 - BORED ) * dangling + BORED * total ) / numberOfDocs + ( 1 - BORED ) * pulled;
+			double change = updated - a[i];
+			total += change;
+			if ( out[i] == 0 )
+				dangling += change;
+			sumDif += Math.abs( change );
+			a[i] = updated;
+		}
+		for ( int i = 0; i < numberOfDocs; i++ )
+			a[i] /= total;
+		return sumDif;
+    }
+
+
+    /**
+     *   The cosine between the differences x1 - x0 and x2 - x1.
+     */
+    static double alignment( double[] x0, double[] x1, double[] x2 ) {
+		double dot = 0, n1 = 0, n2 = 0;
+		for ( int i = 0; i < x0.length; i++ ) {
+			double d1 = x1[i] - x0[i];
+			double d2 = x2[i] - x1[i];
+			dot += d1 * d2;
+			n1 += d1 * d1;
+			n2 += d2 * d2;
+		}
+		return n1 > 0 && n2 > 0 ? dot / Math.sqrt( n1 * n2 ) : 0;
+    }
+
+
+    /**
+     *   Aitken extrapolation of every probability from the last three
+     *   vectors x0, x1, x2: x2 - (x2 - x1)^2 / (x2 - 2 x1 + x0). Where the
+     *   denominator vanishes, or the estimate is not a probability, the
+     *   last value is kept.
+     */
+    void aitken( double[][] history, double[] aCurrent, int numberOfDocs ) {
+		double[] x0 = history[0], x1 = history[1], x2 = history[2];
+		double norm = 0;
+		for ( int i = 0; i < numberOfDocs; i++ ) {
+			double d1 = x2[i] - x1[i];
+			double d2 = d1 - ( x1[i] - x0[i] );
+			double x = x2[i];
+			if ( Math.abs( d2 ) > 1e-300 ) {
+				double estimate = x2[i] - d1 * d1 / d2;
+				if ( estimate > 0 )
+					x = estimate;
+			}
+			aCurrent[i] = x;
+			norm += x;
+		}
+		for ( int i = 0; i < numberOfDocs; i++ )
+			aCurrent[i] /= norm;
+    }
+
+
+    /**
+     *   Quadratic extrapolation from the last four vectors x0 ... x3.
+     *   With y_i = x_i - x0, the coefficients g1, g2 of the minimal
+     *   polynomial (g3 = 1) are the least squares solution of
+     *   [y1 y2] (g1, g2) = -y3, and the estimate of the limit is
+     *   (g1 + g2 + g3) x1 + (g2 + g3) x2 + g3 x3.
+     */
+    void quadratic( double[][] history, double[] aCurrent, int numberOfDocs ) {
+		double[] x0 = history[0], x1 = history[1], x2 = history[2], x3 = history[3];
+		// The normal equations Y^T Y g = -Y^T y3.
+		double s11 = 0, s12 = 0, s22 = 0, r1 = 0, r2 = 0;
+		for ( int i = 0; i < numberOfDocs; i++ ) {
+			double y1 = x1[i] - x0[i];
+			double y2 = x2[i] - x0[i];
+			double y3 = x3[i] - x0[i];
+			s11 += y1 * y1;
+			s12 += y1 * y2;
+			s22 += y2 * y2;
+			r1 -= y1 * y3;
+			r2 -= y2 * y3;
+		}
+		double det = s11 * s22 - s12 * s12;
+		if ( Math.abs( det ) <= 1e-12 * s11 * s22 ) {
+			System.arraycopy( x3, 0, aCurrent, 0, numberOfDocs );
+			return;
+		}
+		double g1 = ( r1 * s22 - r2 * s12 ) / det;
+		double g2 = ( s11 * r2 - s12 * r1 ) / det;
+		double b0 = g1 + g2 + 1;
+		double b1 = g2 + 1;
+		double norm = 0;
+		for ( int i = 0; i < numberOfDocs; i++ ) {
+			double x = b0 * x1[i] + b1 * x2[i] + x3[i];
+			aCurrent[i] = x > 0 ? x : x3[i];
+			norm += aCurrent[i];
+		}
+		for ( int i = 0; i < numberOfDocs; i++ )
+			aCurrent[i] /= norm;
+    }
+
+
+    /**
+     *   The L1 distance between two probability vectors.
+     */
+    static double distance( double[] a, double[] b ) {
+		double d = 0;
+		for ( int i = 0; i < a.length; i++ )
+			d += Math.abs( a[i] - b[i] );
+		return d;
+    }
+
+
+    /**
+     *   Reads ranks saved by writeRanks, or "title;name:rank" lines like
+     *   those of pageranks.txt, as a start vector for the documents of
+     *   the link file. Documents that are not in the file, e.g. new ones,
+     *   start with probability 1/N, and the vector is then normalized.
+     */
+    double[] readRanks( String filename, int numberOfDocs ) throws IOException {
+		double[] start = new double[numberOfDocs];
+		Arrays.fill( start, 1.0 / numberOfDocs );
+		int found = 0;
+		try ( BufferedReader in = new BufferedReader( new FileReader( filename ))) {
+			String line;
+			while ( ( line = in.readLine() ) != null ) {
+				int colon = line.lastIndexOf( ':' );
+				if ( colon < 0 )
+					continue;
+				Integer doc = docNumber.get( line.substring( line.lastIndexOf( ';', colon ) + 1, colon ));
+				if ( doc != null && doc < numberOfDocs ) {
+					start[doc] = Double.parseDouble( line.substring( colon + 1 ));
+					found++;
+				}
 			}
-			for(int i = 0; i < numberOfDocs; i++)
-				aCurrent[i] = (double)aCurrent[i] / normalTmep;
+		}
+		double norm = 0;
+		for ( double x : start )
+			norm += x;
+		for ( int i = 0; i < numberOfDocs; i++ )
+			start[i] /= norm;
+		System.err.println( "Warm start from " + found + " ranks in " + filename );
+		return start;
+    }
 
-			for(int i = 0; i < numberOfDocs; i++){
-				sumDif += Math.abs(a[i] - aCurrent[i]);
+
+    /**
+     *   Writes the rank of every document as a "name:rank" line, for
+     *   warm-starting a later computation (see readRanks).
+     */
+    void writeRanks( double[] aCurrent, int numberOfDocs, String filename ) throws IOException {
+		try ( BufferedWriter writer = new BufferedWriter( new FileWriter( filename ))) {
+			for ( int i = 0; i < numberOfDocs; i++ ) {
+				writer.write( docName[i] + ":" + aCurrent[i] );
+				writer.newLine();
 			}
-			counter++;
-			
 		}
+    }
+
+
+    /**
+     *   Like iterate, but every iteration is computed by @code{threads}
+     *   threads, each pulling the probability from the inlinks of one
+     *   range of documents at a time. The sums for the random jump, the
+     *   normalization and the convergence test are computed per range
+     *   and then added up. The residual and time of every iteration are
+     *   reported.
+     */
+    double[] iterateParallel( int numberOfDocs, int maxIterations, int threads ) throws Exception {
+		if ( inOffsets == null )
+			buildInLinkMatrix( numberOfDocs );
+		// Several ranges per thread, so that threads that finish early
+		// can take over the remaining ones.
+		int ranges = Math.min( numberOfDocs, 8 * threads );
+		int[] bounds = partition( numberOfDocs, ranges );
+		ForkJoinPool pool = new ForkJoinPool( threads );
+
+		double[] a = new double[numberOfDocs];
+		double[] aCurrent = new double[numberOfDocs];
+		// a[j] / out[j], the probability that each outlink of j carries.
+		double[] share = new double[numberOfDocs];
+		double[] totals = new double[ranges];
+		double[] danglings = new double[ranges];
+		double[] norms = new double[ranges];
+		double[] diffs = new double[ranges];
+		aCurrent[0] = 1;
+		double sumDif = 1;
+		int counter = 0;
+		try {
+			while ( sumDif > EPSILON && counter < maxIterations ) {
+				long start = System.nanoTime();
+				double[] prev = aCurrent;
+				double[] next = a;
+				a = prev;
+				aCurrent = next;
+				forEachRange( pool, ranges, r -> {
+					double total = 0;
+					double dangling = 0;
+					for ( int j = bounds[r]; j < bounds[r + 1]; j++ ) {
+						total += prev[j];
+						if ( out[j] == 0 )
+							dangling += prev[j];
+						else
+							share[j] = prev[j] / out[j];
+					}
+					totals[r] = total;
+					danglings[r] = dangling;
+				});
+				double jump = ( ( 1 - BORED ) * sum( danglings ) + BORED * sum( totals )) / numberOfDocs;
+				forEachRange( pool, ranges, r -> {
+					double norm = 0;
+					for ( int i = bounds[r]; i < bounds[r + 1]; i++ ) {
+						double pulled = 0;
+						for ( int k = inOffsets[i]; k < inOffsets[i + 1]; k++ )
+							pulled += share[sources[k]];
+						next[i] = jump + ( 1 - BORED ) * pulled;
+						norm += next[i];
+					}
+					norms[r] = norm;
+				});
+				double norm = sum( norms );
+				forEachRange( pool, ranges, r -> {
+					double diff = 0;
+					for ( int i = bounds[r]; i < bounds[r + 1]; i++ ) {
+						next[i] /= norm;
+						diff += Math.abs( prev[i] - next[i] );
+					}
+					diffs[r] = diff;
+				});
+				sumDif = sum( diffs );
+				counter++;
+				System.err.println( String.format( "iteration %3d: residual %.3e, %.1f ms",
+								   counter, sumDif, ( System.nanoTime() - start ) / 1e6 ));
+			}
+		} finally {
+			pool.shutdown();
+		}
+		System.err.println( "Converged after " + counter + " iterations" );
+		return aCurrent;
+    }
+
+
+    /**
+     *   Approximates the PageRank by random walks over the link matrix.
+     *   A walk stops with probability BORED at every step, and otherwise
+     *   follows a random outlink of the current document.
+     *
+     *   With @code{randomStart}, walks*N walks start at random documents,
+     *   and the PageRank of a document is the fraction of walks that end
+     *   there. From a document without outlinks such a walk jumps to a
+     *   random document. Otherwise @code{walks} walks start at every
+     *   document, and the PageRank of a document is the fraction of all
+     *   steps that visit it; these walks stop at documents without
+     *   outlinks, since the jump from them leads to a random document
+     *   just like a new walk does.
+     *
+     *   The walks are divided between @code{threads} threads, each with
+     *   its own counts and random numbers.
+     */
+    double[] monteCarlo( int numberOfDocs, int walks, boolean randomStart, int threads ) throws Exception {
+		long[][] counts = new long[threads][];
+		ForkJoinPool pool = new ForkJoinPool( threads );
+		try {
+			forEachRange( pool, threads, t -> {
+				long[] count = new long[numberOfDocs];
+				SplittableRandom random = new SplittableRandom( 4711 + t );
+				int from = (int)( (long)numberOfDocs * t / threads );
+				int to = (int)( (long)numberOfDocs * ( t + 1 ) / threads );
+				for ( int start = from; start < to; start++ ) {
+					for ( int w = 0; w < walks; w++ ) {
+						int doc = randomStart ? random.nextInt( numberOfDocs ) : start;
+						while ( true ) {
+							if ( !randomStart )
+								count[doc]++;
+							if ( random.nextDouble() < BORED )
+								break;
+							if ( out[doc] == 0 ) {
+								if ( !randomStart )
+									break;
+								doc = random.nextInt( numberOfDocs );
+							} else {
+								doc = targets[offsets[doc] + random.nextInt( out[doc] )];
+							}
+						}
+						if ( randomStart )
+							count[doc]++;
+					}
+				}
+				counts[t] = count;
+			});
+		} finally {
+			pool.shutdown();
+		}
+		double[] rank = new double[numberOfDocs];
+		double total = 0;
+		for ( long[] count : counts ) {
+			for ( int i = 0; i < numberOfDocs; i++ ) {
+				rank[i] += count[i];
+				total += count[i];
+			}
+		}
+		for ( int i = 0; i < numberOfDocs; i++ )
+			rank[i] /= total;
+		return rank;
+    }
+
+
+    /**
+     *   Returns the documents with the k highest probabilities, highest first.
+     */
+    static Integer[] top( double[] rank, int k ) {
+		Integer[] docs = new Integer[rank.length];
+		for ( int i = 0; i < docs.length; i++ )
+			docs[i] = i;
+		Arrays.sort( docs, ( x, y ) -> Double.compare( rank[y], rank[x] ));
+		return Arrays.copyOf( docs, Math.min( k, docs.length ));
+    }
+
+
+    /**
+     *   The fraction of the top k documents of @code{exact} that are
+     *   among the top k of @code{approximate}.
+     */
+    static double overlap( double[] exact, double[] approximate, int k ) {
+		Integer[] a = top( exact, k );
+		HashSet<Integer> b = new HashSet<Integer>( Arrays.asList( top( approximate, k )));
+		int common = 0;
+		for ( int doc : a )
+			if ( b.contains( doc ))
+				common++;
+		return (double)common / a.length;
+    }
+
+
+    /**
+     *   Kendall's tau between the two rankings of the top k documents of
+     *   @code{exact}: 1 if @code{approximate} puts them in the same order,
+     *   -1 if in the opposite order.
+     */
+    static double kendallTau( double[] exact, double[] approximate, int k ) {
+		Integer[] docs = top( exact, k );
+		long concordant = 0;
+		long discordant = 0;
+		for ( int i = 0; i < docs.length; i++ ) {
+			for ( int j = i + 1; j < docs.length; j++ ) {
+				double d = Math.signum( exact[docs[i]] - exact[docs[j]] ) * Math.signum( approximate[docs[i]] - approximate[docs[j]] );
+				if ( d > 0 )
+					concordant++;
+				else if ( d < 0 )
+					discordant++;
+			}
+		}
+		long pairs = (long)docs.length * ( docs.length - 1 ) / 2;
+		return pairs == 0 ? 1 : (double)( concordant - discordant ) / pairs;
+    }
+
+
+    interface RangeTask {
+	void run( int range );
+    }
+
+
+    /**
+     *   Runs the task for every range in the pool, and waits for all of them.
+     */
+    static void forEachRange( ForkJoinPool pool, int ranges, RangeTask task ) throws Exception {
+		pool.submit( () -> IntStream.range( 0, ranges ).parallel().forEach( task::run )).get();
+    }
+
+
+    static double sum( double[] values ) {
+		double s = 0;
+		for ( double v : values )
+			s += v;
+		return s;
+    }
+
+
+    /**
+     *   Ranks the documents by their probabilities, and prints the top 30.
+     */
+    void printTop( double[] aCurrent, int numberOfDocs ) {
 		for (int i = 0; i < numberOfDocs; i++){
 			pageRanked.add(new DocumentRaking(docName[i], aCurrent[i]));
 			
@@ -203,7 +886,7 @@ public class PageRank  {
 		// }catch(IOException ex){
 		// 	System.out.println(ex);
 		// }
-		for (int i = 0; i < 30; i++) {
+		for (int i = 0; i < 30 && i < pageRanked.size(); i++) {
 			System.out.print(pageRanked.get(i).docName); 
 			System.out.print(" : ");
 			System.out.println(pageRanked.get(i).probability);
@@ -275,11 +958,72 @@ public class PageRank  {
 	}
 
     public static void main( String[] args ) throws Exception {
-	if ( args.length != 1 ) {
-	    System.err.println( "Please give the name of the link file" );
+	if ( args.length == 0 ) {
+	    printHelpMessage();
+	    return;
+	}
+	int threads = 0;
+	int walks = 0;
+	Solver solver = Solver.POWER;
+	boolean solverGiven = false;
+	String warmFile = null;
+	String saveFile = null;
+	boolean randomStart = false;
+	int i = 1;
+	while ( i < args.length ) {
+	    if ( "-t".equals( args[i] ) && i + 1 < args.length ) {
+		threads = Integer.parseInt( args[i + 1] );
+		i += 2;
+	    } else if ( "-mc".equals( args[i] ) && i + 1 < args.length ) {
+		walks = Integer.parseInt( args[i + 1] );
+		i += 2;
+	    } else if ( "-random".equals( args[i] )) {
+		randomStart = true;
+		i++;
+	    } else if ( "-solver".equals( args[i] ) && i + 1 < args.length ) {
+		solver = "all".equals( args[i + 1] ) ? null : Solver.valueOf( args[i + 1].toUpperCase().replace( '-', '_' ));
+		solverGiven = true;
+		i += 2;
+	    } else if ( "-warm".equals( args[i] ) && i + 1 < args.length ) {
+		warmFile = args[i + 1];
+		i += 2;
+	    } else if ( "-save".equals( args[i] ) && i + 1 < args.length ) {
+		saveFile = args[i + 1];
+		i += 2;
+	    } else {
+		System.err.println( "Unrecognized parameter: " + args[i] );
+		printHelpMessage();
+		return;
+	    }
+	}
+	// The parallel and Monte Carlo modes have their own solvers, and start from scratch.
+	if (( threads > 0 || walks > 0 ) && ( solverGiven || warmFile != null || saveFile != null )) {
+	    System.err.println( "-solver, -warm and -save cannot be combined with -t or -mc" );
+	    printHelpMessage();
+	    return;
 	}
-	else {
-	    new PageRank( args[0] );
+	if ( randomStart && walks == 0 ) {
+	    System.err.println( "-random requires -mc" );
+	    printHelpMessage();
+	    return;
 	}
+	if ( walks > 0 )
+	    new PageRank( args[0], Math.max( threads, 1 ), walks, randomStart );
+	else if ( threads > 0 )
+	    new PageRank( args[0], threads );
+	else
+	    new PageRank( args[0], solver, warmFile, saveFile );
+    }
+
+
+    static void printHelpMessage() {
+	System.err.println( "Usage: PageRank <linkfile> [options]" );
+	System.err.println( "  -t <number> : number of threads (default: sequential power iteration)" );
+	System.err.println( "  -mc <number> : approximate by this many random walks per document, and compare with power iteration" );
+	System.err.println( "  -random : with -mc, start the walks at random documents and count where they end" );
+	System.err.println( "  -solver power|gauss-seidel|aitken|quadratic|all : sequential solver (default: power)" );
+	System.err.println( "  -warm <file> : start from the ranks in this file, e.g. one written by -save" );
+	System.err.println( "  -save <file> : write the ranks of all documents to this file" );
+	System.err.println( "  -solver, -warm and -save are for sequential runs, without -t or -mc" );
     }
 }
\ No newline at end of file
@@ -1 +1 @@
-java -cp classes -Xmx1g ir.Engine -d c:\davisWiki -l ir22.png -p patterns.txt -ni
+java -cp classes -Xmx1g ir.Engine -d c:\davisWiki -l ir22.png -p patterns.txt -pi -ni
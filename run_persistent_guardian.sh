@@ -1,2 +1,2 @@
 #!/bin/sh
-java -cp classes -Xmx1g ir.Engine -d /info/DD2476/ir22/lab/guardian -l ir22.png -p patterns.txt -ni
+java -cp classes -Xmx1g ir.Engine -d /info/DD2476/ir22/lab/guardian -l ir22.png -p patterns.txt -pi -ni
@@ -0,0 +1,2 @@
+#!/bin/sh
+java -cp classes -Xmx1g ir.Engine -d /info/DD2476/ir22/lab/davisWiki -p patterns.txt -server -port 8080